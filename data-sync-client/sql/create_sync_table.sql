@@ -19,7 +19,7 @@ CREATE TABLE `sync_es_writer_config`
 (
     `id`                      int(11) unsigned NOT NULL AUTO_INCREMENT COMMENT '主键',
     `base_conf_id`            int(11) unsigned NOT NULL DEFAULT '0' COMMENT '基础配置id',
-    `update_script`           varchar(500) NOT NULL DEFAULT '' COMMENT 'es更新script，参数用%field_name%封装，无需对字符类型设置''''',
+    `update_script`           varchar(500) NOT NULL DEFAULT '' COMMENT 'es更新script，参数用%field_name%封装，无需对字符类型设置''''，加载时转换为params.field_name，以脚本参数传值',
     `es_index`                varchar(45)  NOT NULL DEFAULT '' COMMENT 'es index名称',
     `es_type`                 varchar(20)  NOT NULL DEFAULT '' COMMENT 'es type名称',
     `es_routing`              varchar(45)  NOT NULL DEFAULT '' COMMENT 'es routing key',
@@ -28,6 +28,8 @@ CREATE TABLE `sync_es_writer_config`
     `es_id_prefix`            varchar(45)  NOT NULL DEFAULT '' COMMENT 'es主键id前缀，主表时用',
     `es_foreign_key_name`     varchar(45)  NOT NULL DEFAULT '' COMMENT '从表更新时，关联的外键名称',
     `foreign_key_origin_name` varchar(45)  NOT NULL DEFAULT '' COMMENT '关联键在表中的字段名，用于删除操作获取关联值',
+    `update_refresh`          smallint(2) NOT NULL DEFAULT '0' COMMENT '从表局部更新后是否立即刷新索引，0 否，1 是',
+    `update_time`             datetime     NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
     PRIMARY KEY (`id`)
 ) ENGINE=InnoDB AUTO_INCREMENT=8 DEFAULT CHARSET=utf8mb4 COMMENT='同步es写入配置';
 
@@ -38,6 +40,70 @@ CREATE TABLE `sync_sql_reader_config`
     `query_whole_sql`  text NOT NULL COMMENT '查询整条数据sql，参数用#{field_name}封装',
     `query_update_sql` text NOT NULL COMMENT '查询更新数据sql，主表无需设置，注意查询结果为单一数据，参数用#{field_name}封装',
     `query_delete_sql` text NOT NULL COMMENT '删除操作时，查询整条数据的sql，参数用#{field_name}封装',
+    `event_sourced`    smallint(2) NOT NULL DEFAULT '0' COMMENT '主表新增、更新时，是否直接用变更后的数据生成文档，0 否，1 是',
+    `event_field_mapping` varchar(1000) NOT NULL DEFAULT '' COMMENT '事件字段映射，格式column[:es_field]，多个用","分割；为空时解析query_whole_sql，设置后query_whole_sql只用于查询关联字段，可为空',
+    `lookup_config`    text COMMENT '维表查询配置，json数组，如[{"table":"db.table","keyName":"category_id","keyColumn":"id","sql":"select name as category_name from category where id = #{category_id}"}]，查询结果缓存，按维表变更事件失效',
+    `query_batch_sql`  text COMMENT '批量查询整条数据sql，只能有一个参数，形如 where id in (#{id})，参数展开为多个key；为空时不批量读取',
+    `batch_key_name`   varchar(64) NOT NULL DEFAULT '' COMMENT '批量查询结果中对应key的字段，用于把查询结果拆分到各个事件',
+    `update_time`      datetime NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
     PRIMARY KEY (`id`)
 ) ENGINE=InnoDB AUTO_INCREMENT=8 DEFAULT CHARSET=utf8mb4 COMMENT='同步sql读取配置';
 
+
+CREATE TABLE `sync_bootstrap_task`
+(
+    `id`             bigint(20) unsigned NOT NULL AUTO_INCREMENT COMMENT '主键',
+    `reader_conf_id` int(11) unsigned NOT NULL DEFAULT '0' COMMENT '同步配置id',
+    `group_id`       varchar(64) NOT NULL DEFAULT '' COMMENT '完成后重置消费位点的消费组，为空时不重置',
+    `target_index`   varchar(128) NOT NULL DEFAULT '' COMMENT '写入的索引，为空时写入配置的索引；重建索引时为新建的索引',
+    `chunk_size`     bigint(20) NOT NULL DEFAULT '0' COMMENT '每个分片的主键范围大小',
+    `start_time`     datetime    NOT NULL COMMENT '任务开始时间，完成后增量同步从此时间重新消费',
+    `status`         smallint(2) NOT NULL DEFAULT '0' COMMENT '状态，0 执行中，1 已完成，2 失败',
+    `create_time`    datetime    NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time`    datetime    NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='全量初始化任务';
+
+CREATE TABLE `sync_bootstrap_chunk`
+(
+    `id`          bigint(20) unsigned NOT NULL AUTO_INCREMENT COMMENT '主键',
+    `task_id`     bigint(20) unsigned NOT NULL DEFAULT '0' COMMENT '任务id',
+    `range_start` bigint(20) NOT NULL DEFAULT '0' COMMENT '主键范围起始（包含）',
+    `range_end`   bigint(20) NOT NULL DEFAULT '0' COMMENT '主键范围结束（不包含）',
+    `status`      smallint(2) NOT NULL DEFAULT '0' COMMENT '状态，0 未完成，1 已完成，2 失败',
+    `row_count`   bigint(20) NOT NULL DEFAULT '0' COMMENT '写入的文档数',
+    `error_msg`   varchar(500) NOT NULL DEFAULT '' COMMENT '失败原因',
+    `update_time` datetime    NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_task_id` (`task_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='全量初始化分片';
+
+CREATE TABLE `sync_dead_letter`
+(
+    `id`          bigint(20) unsigned NOT NULL AUTO_INCREMENT COMMENT '主键',
+    `es_index`    varchar(128) NOT NULL DEFAULT '' COMMENT '索引',
+    `doc_id`      varchar(255) NOT NULL DEFAULT '' COMMENT '文档id',
+    `routing`     varchar(128) NOT NULL DEFAULT '' COMMENT '路由',
+    `op_type`     varchar(16)  NOT NULL DEFAULT '' COMMENT '操作类型，index、create、update、delete',
+    `source`      mediumtext COMMENT '写入的文档内容，删除时为空',
+    `status`      int(11)      NOT NULL DEFAULT '0' COMMENT '失败的http状态码，请求整体失败时为0',
+    `attempts`    int(11)      NOT NULL DEFAULT '0' COMMENT '已重试次数',
+    `error_msg`   varchar(1000) NOT NULL DEFAULT '' COMMENT '失败原因',
+    `create_time` datetime     NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_index_doc_id` (`es_index`, `doc_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='写入失败的文档，修复后可按记录重新同步';
+
+CREATE TABLE `sync_rebuild_index`
+(
+    `id`           bigint(20) unsigned NOT NULL AUTO_INCREMENT COMMENT '主键',
+    `es_alias`     varchar(128) NOT NULL DEFAULT '' COMMENT '重建的索引别名，即写入配置的索引名',
+    `target_index` varchar(128) NOT NULL DEFAULT '' COMMENT '重建中的新索引',
+    `task_id`      bigint(20) unsigned NOT NULL DEFAULT '0' COMMENT '导入新索引的全量初始化任务id',
+    `status`       smallint(2)  NOT NULL DEFAULT '0' COMMENT '状态，0 双写中，1 已切换别名，2 已取消',
+    `create_time`  datetime     NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time`  datetime     NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_status` (`status`),
+    KEY `idx_task_id` (`task_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='重建中的索引，各实例按状态为0的记录双写';
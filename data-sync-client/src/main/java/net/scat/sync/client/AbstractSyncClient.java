@@ -1,8 +1,10 @@
 package net.scat.sync.client;
 
 import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.consumer.base.SyncBatchReads;
 import net.scat.sync.consumer.impl.SyncEsBySqlConsumer;
 import net.scat.sync.model.DataChangeEvent;
+import net.scat.sync.utils.Futures;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,23 +13,101 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.util.CollectionUtils;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 public abstract class AbstractSyncClient implements SyncClient, ApplicationContextAware {
     private Map<String, List<DataChangeEventConsumer>> consumers;
+    private Collection<DataChangeEventObserver> observers = Collections.emptyList();
     @Autowired(required = false)
     private SyncEsBySqlConsumer defaultSyncEsConsumer;
+    @Autowired(required = false)
+    private SyncLagTracker lagTracker;
+
+    @Override
+    public void receive(DataChangeEvent event) {
+        notifyObservers(event);
+        beginTrack(event);
+        try {
+            dispatch(event);
+        } catch (RuntimeException e) {
+            endTrack(event, e);
+            throw e;
+        }
+        endTrack(event, null);
+    }
 
     /**
-     * 根据[数据库.表名]分发事件
+     * 事件到达，开始跟踪复制延迟
+     */
+    protected void beginTrack(DataChangeEvent event) {
+        if (lagTracker != null) {
+            lagTracker.begin(event);
+        }
+    }
+
+    /**
+     * 事件处理结束（写入完成或失败），结束跟踪
+     */
+    protected void endTrack(DataChangeEvent event, Throwable error) {
+        if (lagTracker != null) {
+            lagTracker.end(event, error);
+        }
+    }
+
+    /**
+     * 通知事件观察者，观察者异常不影响事件处理
+     */
+    protected void notifyObservers(DataChangeEvent event) {
+        for (DataChangeEventObserver observer : observers) {
+            try {
+                observer.observe(event);
+            } catch (Exception e) {
+                log.error("Observe event error, observer=" + observer.getClass().getSimpleName() + ", event=" + event.getSimpleInfo(), e);
+            }
+        }
+    }
+
+    /**
+     * 批量读取一批事件需要的整条数据，合并同一配置的多次查询
+     */
+    protected SyncBatchReads batchRead(List<DataChangeEvent> events) {
+        if (defaultSyncEsConsumer == null) {
+            return SyncBatchReads.EMPTY;
+        }
+        try {
+            return defaultSyncEsConsumer.batchRead(events);
+        } catch (Exception e) {
+            log.error("Batch read error, events will be read one by one, size=" + events.size(), e);
+            return SyncBatchReads.EMPTY;
+        }
+    }
+
+    /**
+     * 分发事件并等待写入完成
+     */
+    protected void dispatch(DataChangeEvent event) {
+        try {
+            Futures.await(dispatch(event, SyncBatchReads.EMPTY));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 根据[数据库.表名]分发事件，自定义消费者同步执行，默认消费者的写入异步执行
      * @param event
+     * @param batchReads 预先批量读取的数据
+     * @return 写入全部完成时完成
      */
-    @Override
-    public void receive(DataChangeEvent event) {
+    protected CompletableFuture<Void> dispatch(DataChangeEvent event, SyncBatchReads batchReads) {
         DataChangeEvent.MetaData metaData = event.getMetaData();
         List<DataChangeEventConsumer> consumers = this.consumers.get(getKey(metaData.getDb(), metaData.getTable()));
 
         boolean handled = false;
+        CompletableFuture<Void> writes = Futures.done();
         if (!CollectionUtils.isEmpty(consumers)) {
             for (DataChangeEventConsumer consumer : consumers) {
                 consumer.consume(event);
@@ -36,7 +116,7 @@ public abstract class AbstractSyncClient implements SyncClient, ApplicationConte
         }
         if (defaultSyncEsConsumer != null && defaultSyncEsConsumer.support(event)) {
             try {
-                defaultSyncEsConsumer.consume(event);
+                writes = defaultSyncEsConsumer.consumeAsync(event, batchReads);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -45,10 +125,12 @@ public abstract class AbstractSyncClient implements SyncClient, ApplicationConte
         if (!handled){
             log.warn("Can not find support consumer for event, event=" + event.getSimpleInfo());
         }
+        return writes;
     }
 
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+        observers = applicationContext.getBeansOfType(DataChangeEventObserver.class).values();
         Map<String, DataChangeEventConsumer> beans = applicationContext.getBeansOfType(DataChangeEventConsumer.class);
         if (CollectionUtils.isEmpty(beans)) {
             log.error("Can not find any DataChangeEventConsumer entity");
@@ -0,0 +1,12 @@
+package net.scat.sync.client;
+
+
+import net.scat.sync.model.DataChangeEvent;
+
+/**
+ * 事件观察者，事件到达客户端、分发给consumer之前回调，用于缓存失效等不影响数据处理的操作
+ */
+public interface DataChangeEventObserver {
+
+    void observe(DataChangeEvent event);
+}
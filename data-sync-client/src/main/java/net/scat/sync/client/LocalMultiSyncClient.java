@@ -1,7 +1,9 @@
 package net.scat.sync.client;
 
 import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.consumer.base.SyncBatchReads;
 import net.scat.sync.model.DataChangeEvent;
+import net.scat.sync.utils.SyncMetrics;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
@@ -9,11 +11,16 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * 本地消息处理，启用n个队列，对应n个线程，队列与线程一一对应，保证本地顺序性
+ * 本地消息处理，启用n个队列，对应n个线程，队列与线程一一对应，保证本地顺序性；
+ * 线程每次取出队列中积压的一批事件，先合并读取整条数据，再按顺序逐个处理；
+ * 写入异步执行，线程不等待写入完成即处理下一批，写入失败时记录日志
  */
 @Component
 @Slf4j
@@ -21,7 +28,16 @@ public class LocalMultiSyncClient extends AbstractSyncClient implements SyncClie
     private List<Worker> workers;
     private final static int WORKER_SIZE = 16;
     private final static int QUEUE_SIZE = 1000;
+    private final static int BATCH_SIZE = 100;
     private volatile boolean closed = false;
+    /**
+     * 已开始、未完成的事件写入数
+     */
+    private final AtomicInteger inFlightWrites = new AtomicInteger();
+    /**
+     * 库名.表名 -> 排队中的事件数
+     */
+    private final ConcurrentHashMap<String, AtomicInteger> queuedEvents = new ConcurrentHashMap<>();
 
     @PostConstruct
     public void init() {
@@ -31,6 +47,7 @@ public class LocalMultiSyncClient extends AbstractSyncClient implements SyncClie
             worker.start();
             workers.add(worker);
         }
+        SyncMetrics.gauge("client.inflight.writes", inFlightWrites, AtomicInteger::get);
     }
 
     @PreDestroy
@@ -44,49 +61,104 @@ public class LocalMultiSyncClient extends AbstractSyncClient implements SyncClie
         Assert.notNull(event, "Event");
         DataChangeEvent.MetaData metaData = event.getMetaData();
         Assert.isTrue(metaData != null, "Event metaData is null, event=" +  event.getSimpleInfo());
+        // 事件到达时即通知观察者，不等待排队
+        notifyObservers(event);
+        beginTrack(event);
 
         int hash = hash((metaData.getDb() + metaData.getTable() + event.getPrimaryKey()));
         int index = hash & (WORKER_SIZE - 1);
         Worker worker = workers.get(index);
         boolean success;
+        // 先计数再入队，出队时减少，计数不会为负
+        AtomicInteger queued = getQueued(event);
+        queued.incrementAndGet();
         try {
-            success = worker.queue.offer(event, 1, TimeUnit.SECONDS);
+            success = worker.queue.offer(new QueuedEvent(event, System.nanoTime()), 1, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             log.error("", e);
             success = false;
         }
         if (!success) {
-            throw new RuntimeException(String.format("LocalMultiSyncClient offer event to local queue failed, worker=%s, queueSize=%s, event=%s",
+            queued.decrementAndGet();
+            RuntimeException error = new RuntimeException(String.format("LocalMultiSyncClient offer event to local queue failed, worker=%s, queueSize=%s, event=%s",
                     worker.getName(), worker.queue.size(), event.getSimpleInfo()));
+            endTrack(event, error);
+            throw error;
         }
     }
 
+    /**
+     * 按表统计排队中的事件数，首次出现时注册指标
+     */
+    private AtomicInteger getQueued(DataChangeEvent event) {
+        return queuedEvents.computeIfAbsent(SyncMetrics.table(event), table -> {
+            AtomicInteger queued = new AtomicInteger();
+            SyncMetrics.gauge("client.queue.size", queued, AtomicInteger::get, "table", table);
+            return queued;
+        });
+    }
+
     private static int hash(Object key) {
         int h;
         return (key == null) ? 0 : (h = key.hashCode()) ^ (h >>> 16);
     }
 
+    /**
+     * 排队中的事件及入队时间，用于统计排队耗时
+     */
+    private static class QueuedEvent {
+        private final DataChangeEvent event;
+        private final long enqueueNanos;
+
+        QueuedEvent(DataChangeEvent event, long enqueueNanos) {
+            this.event = event;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+
     private class Worker extends Thread{
-        private final LinkedBlockingQueue<DataChangeEvent> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+        private final LinkedBlockingQueue<QueuedEvent> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
         Worker(String name){
             setName(name);
         }
 
         @Override
         public void run() {
+            List<QueuedEvent> queuedEvents = new ArrayList<>(BATCH_SIZE);
+            List<DataChangeEvent> events = new ArrayList<>(BATCH_SIZE);
             while (!closed || queue.size() > 0) {
-                DataChangeEvent event;
+                queuedEvents.clear();
+                events.clear();
                 try {
-                    event = queue.take();
+                    queuedEvents.add(queue.take());
                 } catch (InterruptedException e) {
                     log.error("", e);
                     continue;
                 }
-                try {
-                    log.info(getName() + ": consumer event=" + event.getSimpleInfo());
-                    LocalMultiSyncClient.super.receive(event);
-                } catch (Exception e) {
-                    log.error("Event consumer error, event=" + event.getSimpleInfo(), e);
+                queue.drainTo(queuedEvents, BATCH_SIZE - 1);
+                for (QueuedEvent queued : queuedEvents) {
+                    SyncMetrics.recordSince(queued.enqueueNanos, "client.queue.wait", "table", SyncMetrics.table(queued.event));
+                    SyncMetrics.recordLag("dequeued", queued.event);
+                    getQueued(queued.event).decrementAndGet();
+                    events.add(queued.event);
+                }
+                SyncBatchReads batchReads = batchRead(events);
+                for (DataChangeEvent event : events) {
+                    try {
+                        log.info(getName() + ": consumer event=" + event.getSimpleInfo());
+                        CompletableFuture<Void> future = dispatch(event, batchReads);
+                        inFlightWrites.incrementAndGet();
+                        future.whenComplete((v, e) -> {
+                            inFlightWrites.decrementAndGet();
+                            endTrack(event, e);
+                            if (e != null) {
+                                log.error("Event write error, event=" + event.getSimpleInfo(), e);
+                            }
+                        });
+                    } catch (Exception e) {
+                        endTrack(event, e);
+                        log.error("Event consumer error, event=" + event.getSimpleInfo(), e);
+                    }
                 }
             }
         }
@@ -0,0 +1,234 @@
+package net.scat.sync.client;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.config.SyncClientProperties;
+import net.scat.sync.model.DataChangeEvent;
+import net.scat.sync.utils.SyncMetrics;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 复制延迟跟踪：事件的timestamp为源库提交时间，记录事件到达客户端、写入es完成时相对提交时间的延迟；
+ * 按表维护低水位，即已到达客户端、尚未处理完成的最早事件的提交时间，水位之前提交的变更均已写入es（刷新后可搜索）。
+ * 定时检查各表延迟，超过SLO阈值时告警；getLags查询各表的当前延迟
+ */
+@Component
+@Slf4j
+public class SyncLagTracker {
+    private final SyncClientProperties properties;
+    private final ConcurrentHashMap<String, TableLag> tables = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SyncLagTracker_checker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SyncLagTracker(SyncClientProperties properties) {
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    public void init() {
+        long interval = properties.getLag().getCheckIntervalSeconds();
+        checker.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void close() {
+        checker.shutdownNow();
+    }
+
+    /**
+     * 事件到达客户端，开始处理
+     */
+    public void begin(DataChangeEvent event) {
+        if (event.getTimestamp() == null) {
+            return;
+        }
+        SyncMetrics.recordLag("received", event);
+        getTable(event).begin(event.getTimestamp().getTime());
+    }
+
+    /**
+     * 事件处理结束，写入完成或失败（失败的事件不再阻挡水位，计入失败数）；
+     * 在事件写入的future完成时调用，从表的update by query先缓冲合并，以合并后的更新发送完成为准，而不是加入缓冲时
+     */
+    public void end(DataChangeEvent event, Throwable error) {
+        if (event.getTimestamp() == null) {
+            return;
+        }
+        long lagMillis = Math.max(0, System.currentTimeMillis() - event.getTimestamp().getTime());
+        if (error == null) {
+            SyncMetrics.recordLag("applied", event);
+        }
+        getTable(event).end(event.getTimestamp().getTime(), lagMillis, error == null);
+    }
+
+    /**
+     * 各表的当前延迟，按延迟从大到小排序
+     */
+    public List<TableLagInfo> getLags() {
+        return tables.values().stream()
+                .map(TableLag::snapshot)
+                .sorted(Comparator.comparingLong(TableLagInfo::getLagMillis).reversed())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 单个表（库名.表名）的当前延迟，未收到过该表的事件时返回null
+     */
+    public TableLagInfo getLag(String table) {
+        TableLag tableLag = tables.get(table);
+        return tableLag == null ? null : tableLag.snapshot();
+    }
+
+    private TableLag getTable(DataChangeEvent event) {
+        return tables.computeIfAbsent(SyncMetrics.table(event), table -> {
+            TableLag tableLag = new TableLag(table);
+            SyncMetrics.gauge("lag.watermark.millis", tableLag, TableLag::getWatermarkLagMillis, "table", table);
+            SyncMetrics.gauge("lag.inflight.events", tableLag, TableLag::getInFlightCount, "table", table);
+            SyncMetrics.gauge("lag.slo.breached", tableLag, t -> t.breached ? 1 : 0, "table", table);
+            return tableLag;
+        });
+    }
+
+    private long getSloMillis(String table) {
+        Long sloMillis = properties.getLag().getTableSloMillis().get(table);
+        return sloMillis != null ? sloMillis : properties.getLag().getSloMillis();
+    }
+
+    private void check() {
+        for (TableLag tableLag : tables.values()) {
+            try {
+                TableLagInfo info = tableLag.check();
+                if (info.isBreached()) {
+                    log.warn("Replication lag exceeds SLO, {}", info);
+                }
+            } catch (Exception e) {
+                log.error("Check replication lag error, table=" + tableLag.table, e);
+            }
+        }
+    }
+
+    private class TableLag {
+        private final String table;
+        /**
+         * 处理中事件的提交时间 -> 事件数
+         */
+        private final TreeMap<Long, Integer> inFlight = new TreeMap<>();
+        private int inFlightCount;
+        private long lastAppliedTime;
+        private long lastAppliedLagMillis;
+        /**
+         * 上次检查以来写入完成的事件的最大延迟
+         */
+        private long recentMaxLagMillis;
+        private long failed;
+        private volatile boolean breached;
+
+        private TableLag(String table) {
+            this.table = table;
+        }
+
+        private synchronized void begin(long timestamp) {
+            inFlight.merge(timestamp, 1, Integer::sum);
+            inFlightCount++;
+        }
+
+        private synchronized void end(long timestamp, long lagMillis, boolean applied) {
+            Integer count = inFlight.get(timestamp);
+            if (count != null) {
+                if (count == 1) {
+                    inFlight.remove(timestamp);
+                } else {
+                    inFlight.put(timestamp, count - 1);
+                }
+                inFlightCount--;
+            }
+            if (applied) {
+                lastAppliedTime = Math.max(lastAppliedTime, timestamp);
+                lastAppliedLagMillis = lagMillis;
+                recentMaxLagMillis = Math.max(recentMaxLagMillis, lagMillis);
+            } else {
+                failed++;
+            }
+        }
+
+        private synchronized long getWatermarkLagMillis() {
+            return inFlight.isEmpty() ? 0 : Math.max(0, System.currentTimeMillis() - inFlight.firstKey());
+        }
+
+        private synchronized int getInFlightCount() {
+            return inFlightCount;
+        }
+
+        /**
+         * 低水位的延迟或上次检查以来写入完成的事件的延迟超过SLO时视为超出
+         */
+        private synchronized TableLagInfo check() {
+            breached = Math.max(getWatermarkLagMillis(), recentMaxLagMillis) > getSloMillis(table);
+            TableLagInfo info = snapshot();
+            recentMaxLagMillis = 0;
+            return info;
+        }
+
+        private synchronized TableLagInfo snapshot() {
+            return new TableLagInfo(table, inFlight.isEmpty() ? null : new Date(inFlight.firstKey()), getWatermarkLagMillis(),
+                    inFlightCount, lastAppliedTime == 0 ? null : new Date(lastAppliedTime), lastAppliedLagMillis,
+                    failed, getSloMillis(table), breached);
+        }
+    }
+
+    /**
+     * 单个表的延迟
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class TableLagInfo {
+        /**
+         * 库名.表名
+         */
+        private final String table;
+        /**
+         * 低水位：处理中的最早事件的提交时间，为空时已全部处理完成
+         */
+        private final Date watermark;
+        /**
+         * 低水位距今的毫秒数，全部处理完成时为0
+         */
+        private final long lagMillis;
+        /**
+         * 处理中的事件数
+         */
+        private final int inFlight;
+        /**
+         * 已写入完成的最新事件的提交时间
+         */
+        private final Date lastAppliedTime;
+        /**
+         * 最近一个写入完成的事件从提交到写入完成的毫秒数
+         */
+        private final long lastAppliedLagMillis;
+        /**
+         * 处理失败的事件数
+         */
+        private final long failed;
+        private final long sloMillis;
+        /**
+         * 最近一次检查时是否超过SLO
+         */
+        private final boolean breached;
+    }
+}
@@ -0,0 +1,206 @@
+package net.scat.sync.client.config;
+
+import com.google.common.collect.Lists;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "data.sync.client")
+public class SyncClientProperties {
+
+    private Config config = new Config();
+
+    private Consumer consumer = new Consumer();
+
+    private Reader reader = new Reader();
+
+    private Writer writer = new Writer();
+
+    private Limiter limiter = new Limiter();
+
+    private Datasource datasource = new Datasource();
+
+    private Bootstrap bootstrap = new Bootstrap();
+
+    private Rebuild rebuild = new Rebuild();
+
+    private Verifier verifier = new Verifier();
+
+    private Lag lag = new Lag();
+
+    @Data
+    public static class Config {
+        // 配置版本检查间隔（秒），版本有变化时才加载变更的配置
+        private int checkIntervalSeconds = 5;
+        // 全量重新加载间隔（秒），兜底修正增量加载遗漏的变更
+        private int fullReloadIntervalSeconds = 600;
+        // 配置表名，收到这些表的变更事件时立即触发配置刷新
+        private List<String> tables = Lists.newArrayList("sync_base_config", "sync_sql_reader_config", "sync_es_writer_config");
+    }
+
+    @Data
+    public static class Consumer {
+        // 一个事件对应多组reader/writer配置时，并行处理的线程数
+        private int fanOutThreads = 16;
+        // 并行处理的等待队列长度，队列满时由当前线程执行
+        private int fanOutQueueSize = 256;
+        // 局部更新的文档不存在时，读取整条数据的线程数
+        private int fallbackThreads = 4;
+        // 单组配置处理失败的重试次数
+        private int retryTimes = 3;
+        // 重试间隔（毫秒）
+        private long retryIntervalMillis = 200;
+        // 分批写入时，单个事件最多同时写入的批次数，为0时读写交替进行
+        private int maxOutstandingBatches = 2;
+    }
+
+    @Data
+    public static class Reader {
+        // 流式读取的fetch size，MySQL驱动下Integer.MIN_VALUE为逐行流式读取，连接开启useCursorFetch时可设为正数
+        private int streamFetchSize = Integer.MIN_VALUE;
+        // 流式读取时每批写入的数据条数
+        private int batchSize = 500;
+        // 维表查询结果缓存的最大条数，为0时不缓存
+        private long lookupCacheSize = 100000;
+        // 批量读取时单次查询的最大key数，超出时拆分为多次查询
+        private int maxBatchKeys = 500;
+    }
+
+    @Data
+    public static class Writer {
+        // 从表局部更新及按外键删除的合并窗口（毫秒），窗口内同一外键的多次更新合并为一次update by query，
+        // 同一配置的多个外键删除合并为一次delete by query
+        private long updateFlushIntervalMillis = 200;
+        // 缓冲的局部更新数达到此值时立即发送
+        private int maxBufferedUpdates = 10000;
+        // 同时执行的update by query、delete by query请求数
+        private int maxConcurrentUpdates = 8;
+        // 局部更新、按外键删除失败的重试次数
+        private int updateRetryTimes = 3;
+        // 按外键删除时，单次delete by query的最大外键数
+        private int deleteBatchSize = 1000;
+        // 批量写入的最大请求数，达到时立即发送
+        private int bulkActions = 1000;
+        // 批量写入的最大字节数，达到时立即发送
+        private long bulkSizeBytes = 5 * 1024 * 1024;
+        // 批量写入的发送间隔（毫秒），未达到数量及大小时定时发送
+        private long bulkFlushIntervalMillis = 200;
+        // 同时发送的批量写入请求数，全部未完成时新的写入阻塞等待
+        private int bulkConcurrentRequests = 4;
+        // 文档写入失败（被拒绝、不可用、版本冲突）时重试的初始间隔（毫秒），之后每次翻倍并加随机抖动
+        private long bulkBackoffMillis = 100;
+        // 文档写入失败的重试次数，超过后记录到失败表sync_dead_letter
+        private int bulkRetryTimes = 5;
+        // 文档内容hash缓存的最大条数，内容与上次写入相同的文档不再写入；为0时不开启
+        private long hashCacheSize = 0;
+    }
+
+    @Data
+    public static class Limiter {
+        // 是否按es的响应自适应限制写入并发，达到上限时写入方阻塞等待
+        private boolean enabled = true;
+        // 批量请求耗时超过此值（毫秒）或有文档被拒绝（429）时视为过载
+        private long latencyThresholdMillis = 2000;
+        // 过载时上限乘以的比例
+        private double backoffRatio = 0.7;
+        // 整个集群同时发送的批量请求数下限，上限为增量写入与重建导入的批量并发数之和
+        private int minClusterRequests = 1;
+        // 单个索引未完成写入的文档数下限，未过载时上限每次增加此数量
+        private int minIndexDocs = 500;
+        // 单个索引未完成写入的文档数上限
+        private int maxIndexDocs = 50000;
+    }
+
+    @Data
+    public static class Datasource {
+        // 库名 -> 连接池名称
+        private Map<String, String> routes = new HashMap<>();
+        // 连接池名称 -> 连接池配置，routes中未在此配置的连接池名称视为JdbcTemplate bean名称
+        private Map<String, Pool> pools = new HashMap<>();
+        // 从库复制延迟的检查间隔（毫秒）
+        private long lagCheckIntervalMillis = 1000;
+        // 判断从库是否已应用事件时预留的余量（毫秒），事件时间与复制延迟均为秒级精度，误差可达2秒，另需覆盖时钟偏差
+        private long lagMarginMillis = 2000;
+    }
+
+    @Data
+    public static class Pool {
+        // 引用已有的JdbcTemplate bean，设置后忽略以下连接配置
+        private String jdbcTemplate;
+        private String url;
+        private String username;
+        private String password;
+        private String driverClassName;
+        // 连接池最大连接数
+        private int maximumPoolSize = 10;
+        // 只读从库，事件已在从库应用时从从库读取，否则读主库；为空时只读主库
+        private Pool replica;
+    }
+
+    @Data
+    public static class Bootstrap {
+        // 全量初始化并行执行分片的线程数
+        private int threads = 8;
+        // 默认每个分片的主键范围大小
+        private long chunkSize = 100000;
+        // 每批按主键查询整条数据并写入的条数
+        private int batchSize = 1000;
+        // 任务开始时间取源库时间后再提前的秒数，完成后消费位点重置到该时间，覆盖事件时间的秒级精度及开始前未提交的短事务
+        private int startTimeMarginSeconds = 10;
+    }
+
+    @Data
+    public static class Rebuild {
+        // 导入新索引的批量写入最大请求数，导入期间新索引无副本、不刷新，可用更大的批次
+        private int bulkActions = 5000;
+        // 导入新索引的批量写入最大字节数
+        private long bulkSizeBytes = 20 * 1024 * 1024;
+        // 导入新索引的批量写入发送间隔（毫秒）
+        private long bulkFlushIntervalMillis = 1000;
+        // 导入新索引时同时发送的批量写入请求数
+        private int bulkConcurrentRequests = 8;
+        // 导入完成后强制合并的段数
+        private int maxNumSegments = 1;
+        // 恢复副本后等待新索引变为green的超时时间（秒），超时后不切换别名
+        private long greenTimeoutSeconds = 1800;
+        // 加载重建状态（sync_rebuild_index）的间隔（秒），其他实例开始或停止的双写在此间隔内生效
+        private long stateCheckIntervalSeconds = 5;
+    }
+
+    @Data
+    public static class Lag {
+        // 复制延迟的SLO阈值（毫秒），表的延迟超过时告警
+        private long sloMillis = 60000;
+        // 按表（库名.表名）设置的SLO阈值（毫秒），未设置的表使用sloMillis
+        private Map<String, Long> tableSloMillis = new HashMap<>();
+        // 检查各表延迟是否超过SLO的间隔（秒）
+        private long checkIntervalSeconds = 10;
+    }
+
+    @Data
+    public static class Verifier {
+        // 并行校验主键范围的线程数
+        private int threads = 4;
+        // 顶层主键范围大小，各范围并行校验
+        private long chunkSize = 100000;
+        // 主键范围不大于此值时，不再细分，逐条比较文档
+        private long leafSize = 1000;
+        // 校验和不一致时，主键范围细分的份数
+        private int fanOut = 10;
+        // 每批读取的文档数，包括数据库按主键查询及es分页查询
+        private int pageSize = 1000;
+        // 每秒最多读取的文档数（数据库与es分别计算），限制对线上的影响
+        private double maxDocsPerSecond = 2000;
+        // 定时校验并修复的配置id，为空时不定时校验
+        private List<Integer> readerConfIds = new ArrayList<>();
+        // 定时校验的间隔（秒）
+        private long intervalSeconds = 3600;
+    }
+}
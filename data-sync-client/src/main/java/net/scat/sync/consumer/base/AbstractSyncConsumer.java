@@ -1,24 +1,46 @@
 package net.scat.sync.consumer.base;
 
 import com.google.common.collect.Lists;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.config.SyncClientProperties;
 import net.scat.sync.enums.DataChangeEventType;
 import net.scat.sync.mapper.SyncBaseConfigMapper;
 import net.scat.sync.model.DataChangeEvent;
 import net.scat.sync.model.SyncBaseConfig;
+import net.scat.sync.model.SyncConfigVersion;
+import net.scat.sync.utils.Futures;
+import net.scat.sync.utils.SingleFlight;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.CollectionUtils;
 
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @Slf4j
 public abstract class AbstractSyncConsumer<R extends SyncBaseConfig, W extends SyncBaseConfig> implements InitializingBean {
-    protected volatile Map<String, List<R>> readerConfigMap = Collections.emptyMap();
-    protected volatile Map<String, List<W>> writerConfigMap = Collections.emptyMap();
+    /**
+     * 配置最近更新时间与数据库时间相差在此范围内时，认为同一秒内可能还有变更，下次检查继续增量加载
+     */
+    private static final long CONFIG_SETTLE_MILLIS = 2000;
+    /**
+     * 收到配置表变更事件后，延迟刷新配置，合并短时间内的多次变更
+     */
+    private static final long CONFIG_EVENT_REFRESH_DELAY_MILLIS = 500;
+    protected volatile SyncPlan<R, W> plan = SyncPlan.empty();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+    private volatile long lastFullReloadTime;
+    private ThreadPoolExecutor fanOutExecutor;
+    /**
+     * 局部更新的文档不存在时读取整条数据，由批量写入的回调提交，队列不限长，不在回调线程执行
+     */
+    private ThreadPoolExecutor fallbackExecutor;
+    private final SingleFlight<String, CompletableFuture<Void>> upsertFlights = new SingleFlight<>();
     private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(r -> {
         Thread thread = new Thread(r, this.getClass().getSimpleName() + "_config_refresher");
         thread.setDaemon(true);
@@ -26,106 +48,267 @@ public abstract class AbstractSyncConsumer<R extends SyncBaseConfig, W extends S
     });
 
     public void consume(DataChangeEvent event) throws Exception{
+        Futures.await(consumeAsync(event, SyncBatchReads.EMPTY));
+    }
+
+    /**
+     * 处理事件，优先使用预先批量读取的整条数据；读取在当前线程完成，写入异步执行，返回的future在写入全部完成时完成
+     */
+    public CompletableFuture<Void> consumeAsync(DataChangeEvent event, SyncBatchReads batchReads) throws Exception {
         DataChangeEvent.MetaData metaData = event.getMetaData();
-        // 获取库表相关的同步配置
-        List<R> readerConfig = readerConfigMap.get(getKey(metaData.getDb(), metaData.getTable()));
-        if (CollectionUtils.isEmpty(readerConfig)) {
-            log.warn("No sync reader config set for this event, event=" + event.getSimpleInfo());
-            return;
+        if (isConfigEvent(event)) {
+            triggerConfigRefresh();
         }
         // 获取库表相关的同步配置
-        List<W> writerConfigs = writerConfigMap.get(getKey(metaData.getDb(), metaData.getTable()));
-        if (CollectionUtils.isEmpty(readerConfig)) {
-            log.warn("No sync writer config set for this event, event=" + event.getSimpleInfo());
-            return;
+        List<SyncConfigPair<R, W>> pairs = plan.getPairs().get(getKey(metaData.getDb(), metaData.getTable()));
+        if (CollectionUtils.isEmpty(pairs)) {
+            if (!isConfigEvent(event)) {
+                log.warn("No sync config set for this event, event=" + event.getSimpleInfo());
+            }
+            return Futures.done();
+        }
+        if (pairs.size() == 1) {
+            return consumeWithRetry(event, pairs.get(0), batchReads);
         }
-        for (R config : readerConfig) {
-            Optional<W> writerConfig = writerConfigs.stream().filter(s -> s.getId().equals(config.getId())).findFirst();
-            if (!writerConfig.isPresent()) {
-                log.warn("Reader config can not match any writerConfig, readerConfig id = " + config.getId());
+        // 多组配置相互独立，并行处理，全部读取并把写入提交给写入方后才返回，同一key的下一事件的写入在其后提交；
+        // 不等待写入完成，写入方只保证同一文档的整条写入、局部更新及删除按提交顺序执行，
+        // 缓冲合并的按外键局部更新（updateAsync）与逐个文档的写入之间不保证顺序
+        List<Future<CompletableFuture<Void>>> futures = new ArrayList<>(pairs.size());
+        for (SyncConfigPair<R, W> pair : pairs) {
+            futures.add(fanOutExecutor.submit(() -> consumeWithRetry(event, pair, batchReads)));
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>(pairs.size());
+        Exception failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                writes.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                log.error(String.format("Consume event failed, readerConfig id=%s, event=%s",
+                        pairs.get(i).getReader().getId(), event.getSimpleInfo()), cause);
+                if (failure == null) {
+                    failure = new Exception("Consume event failed, event=" + event.getSimpleInfo(), cause);
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * 一批事件中，主表新增、更新需要读取的整条数据，同一配置的多个事件合并为一次批量读取；
+     * 批量读取失败时不影响事件处理，处理时逐条读取
+     */
+    public SyncBatchReads batchRead(List<DataChangeEvent> events) {
+        SyncBatchReads batchReads = new SyncBatchReads();
+        if (events.size() < 2) {
+            return batchReads;
+        }
+        Map<Integer, List<DataChangeEvent>> readerEvents = new LinkedHashMap<>();
+        Map<Integer, R> readers = new HashMap<>();
+        SyncPlan<R, W> plan = this.plan;
+        for (DataChangeEvent event : events) {
+            List<SyncConfigPair<R, W>> pairs = plan.getPairs().get(getKey(event.getMetaData().getDb(), event.getMetaData().getTable()));
+            if (CollectionUtils.isEmpty(pairs)) {
+                continue;
+            }
+            for (SyncConfigPair<R, W> pair : pairs) {
+                R readerConfig = pair.getReader();
+                if (willUpsertAll(event, readerConfig, pair.getWriter()) && getReader().supportBatch(readerConfig, event)) {
+                    readers.put(readerConfig.getId(), readerConfig);
+                    readerEvents.computeIfAbsent(readerConfig.getId(), id -> new ArrayList<>()).add(event);
+                }
+            }
+        }
+        for (Map.Entry<Integer, List<DataChangeEvent>> entry : readerEvents.entrySet()) {
+            if (entry.getValue().size() < 2) {
                 continue;
             }
-            consumeOne(event, config, writerConfig.get());
+            try {
+                getReader().getBatchWholeData(readers.get(entry.getKey()), entry.getValue())
+                        .forEach((event, data) -> batchReads.put(event, entry.getKey(), data));
+            } catch (Exception e) {
+                log.warn(String.format("Batch read whole data error, read one by one instead, readerConfig id=%s, events=%s",
+                        entry.getKey(), entry.getValue().size()), e);
+            }
         }
+        return batchReads;
     }
 
-    private void consumeOne(DataChangeEvent event, R readerConfig, W writerConfig) throws Exception {
+    /**
+     * 事件处理时是否会读取整条数据做整体更新，与handleInsert、handleUpdate的判断保持一致
+     */
+    private boolean willUpsertAll(DataChangeEvent event, R readerConfig, W writerConfig) {
+        if (readerConfig.getIsMainTable() != 1) {
+            return false;
+        }
         if (event.getEventType() == DataChangeEventType.INSERT) {
-            handleInsert(event, readerConfig, writerConfig);
+            return true;
+        }
+        if (event.getEventType() != DataChangeEventType.UPDATE) {
+            return false;
+        }
+        if (!compareFields(Lists.newArrayList(readerConfig.getUpdateCompareFields().split(",")),
+                event.getBefore(), event.getAfter())) {
+            return false;
+        }
+        if (StringUtils.isNotBlank(readerConfig.getDelKeyName()) && readerConfig.getDelWholeData() == 1
+                && hasDel(event, readerConfig.getDelKeyName(), readerConfig.getHasDelVal())) {
+            return false;
+        }
+        return getChangedData(event, readerConfig, writerConfig) == null;
+    }
+
+    /**
+     * 主表更新可由事件数据确定变更的文档字段时，返回局部文档，否则返回null
+     */
+    private Map<String, Object> getChangedData(DataChangeEvent event, R readerConfig, W writerConfig) {
+        if (readerConfig.getIsMainTable() != 1 || event.getEventType() != DataChangeEventType.UPDATE
+                || !getWriter().supportPartialUpdate(writerConfig)) {
+            return null;
+        }
+        return getReader().getChangedData(readerConfig, event);
+    }
+
+    /**
+     * 单组配置的处理，失败时单独重试，不影响其他配置；重试时不再使用预先读取的数据。
+     * 只重试读取及提交写入，写入的失败由写入方重试
+     */
+    private CompletableFuture<Void> consumeWithRetry(DataChangeEvent event, SyncConfigPair<R, W> pair,
+                                                     SyncBatchReads batchReads) throws Exception {
+        SyncClientProperties.Consumer properties = getProperties().getConsumer();
+        int retry = properties.getRetryTimes();
+        List<Map<String, Object>> prefetched = batchReads.get(event, pair.getReader().getId());
+        while (true) {
+            try {
+                return consumeOne(event, pair.getReader(), pair.getWriter(), prefetched);
+            } catch (Exception e) {
+                if (retry-- <= 0) {
+                    throw e;
+                }
+                log.warn(String.format("Consume event error, retry=%s, readerConfig id=%s, event=%s",
+                        retry, pair.getReader().getId(), event.getSimpleInfo()), e);
+                prefetched = null;
+                Thread.sleep(properties.getRetryIntervalMillis());
+            }
+        }
+    }
+
+    private CompletableFuture<Void> consumeOne(DataChangeEvent event, R readerConfig, W writerConfig,
+                                               List<Map<String, Object>> prefetched) throws Exception {
+        if (event.getEventType() == DataChangeEventType.INSERT) {
+            return handleInsert(event, readerConfig, writerConfig, prefetched);
         } else if (event.getEventType() == DataChangeEventType.UPDATE) {
-            handleUpdate(event, readerConfig, writerConfig);
+            return handleUpdate(event, readerConfig, writerConfig, prefetched);
         } else {
-            handleDelete(event, readerConfig, writerConfig);
+            return handleDelete(event, readerConfig, writerConfig);
         }
     }
 
-    private void handleInsert(DataChangeEvent event, R readerConfig, W writerConfig) throws Exception {
+    private CompletableFuture<Void> handleInsert(DataChangeEvent event, R readerConfig, W writerConfig,
+                                                 List<Map<String, Object>> prefetched) throws Exception {
         // 新增操作，读取整条数据做插入更新（不存在则插入，存在则更新）
         if (readerConfig.getIsMainTable() == 1) {
-            upsertAll(event, readerConfig, writerConfig);
+            return upsertAll(event, readerConfig, writerConfig, prefetched);
         } else {
-            upsertByPage(event, readerConfig, writerConfig);
+            return upsertByPage(event, readerConfig, writerConfig);
         }
     }
 
-    private void handleUpdate(DataChangeEvent event, R readerConfig, W writerConfig) throws Exception {
+    private CompletableFuture<Void> handleUpdate(DataChangeEvent event, R readerConfig, W writerConfig,
+                                                 List<Map<String, Object>> prefetched) throws Exception {
         // 更新操作，比较需要保留的字段，是否有变更
         if (!compareFields(Lists.newArrayList(readerConfig.getUpdateCompareFields().split(",")),
                 event.getBefore(), event.getAfter())) {
-            return;
+            return Futures.done();
         }
         // 如果支持逻辑删除，并且会导致整条数据的删除，则跳转到删除操作
         if (StringUtils.isNotBlank(readerConfig.getDelKeyName()) &&
                 hasDel(event, readerConfig.getDelKeyName(), readerConfig.getHasDelVal()) &&
                 readerConfig.getDelWholeData() == 1) {
-            handleDelete(event, readerConfig, writerConfig);
-            return;
+            return handleDelete(event, readerConfig, writerConfig);
         }
         Object primaryKey = event.getPrimaryKeyData().getValue();
-        // 主表有变更，则读取全部字段，做整体更新
+        // 主表有变更，只涉及可由事件确定的字段时做局部更新，文档不存在时整体更新；否则读取全部字段，做整体更新
         if (readerConfig.getIsMainTable() == 1) {
-            upsertAll(event, readerConfig, writerConfig);
-            return;
+            Map<String, Object> changes = getChangedData(event, readerConfig, writerConfig);
+            if (changes == null) {
+                return upsertAll(event, readerConfig, writerConfig, prefetched);
+            }
+            if (changes.isEmpty()) {
+                return Futures.done();
+            }
+            // 文档不存在时由写入方在fallbackExecutor中读取整条数据写入，与同一文档之后的写入保持顺序
+            return getWriter().partialUpdateAsync(writerConfig, event, changes,
+                    () -> getReader().getWholeData(readerConfig, primaryKey, event), fallbackExecutor);
         }
         // 从表变更，且非删除操作时（删除操作不适用局部变更）
         if (readerConfig.getUpdateByQuery() == 1 && event.getEventType() != DataChangeEventType.DELETE) {
             // 关联数据变更都相同时，做局部变更
             Map<String, Object> updateData = getReader().getUpdateData(readerConfig, primaryKey, event);
             if (CollectionUtils.isEmpty(updateData)) {
-                return;
+                return Futures.done();
             }
-            getWriter().update(writerConfig, updateData);
+            return getWriter().updateAsync(writerConfig, updateData);
         } else {
-            upsertByPage(event, readerConfig, writerConfig);
+            return upsertByPage(event, readerConfig, writerConfig);
         }
     }
 
-    private void upsertAll(DataChangeEvent event, R readerConfig, W writerConfig) throws Exception {
-        List<Map<String, Object>> data = getReader().getWholeData(readerConfig, event.getPrimaryKeyData().getValue(), event);
-        if (CollectionUtils.isEmpty(data)) {
-            return;
+    private CompletableFuture<Void> upsertAll(DataChangeEvent event, R readerConfig, W writerConfig,
+                                              List<Map<String, Object>> prefetched) throws Exception {
+        if (prefetched != null) {
+            return prefetched.isEmpty() ? Futures.done() : getWriter().upsertAsync(writerConfig, prefetched);
         }
-        getWriter().upsert(writerConfig, data);
+        return singleFlight(event, readerConfig, writerConfig, () -> {
+            List<Map<String, Object>> data = getReader().getWholeData(readerConfig, event.getPrimaryKeyData().getValue(), event);
+            if (CollectionUtils.isEmpty(data)) {
+                return Futures.done();
+            }
+            return getWriter().upsertAsync(writerConfig, data);
+        });
     }
 
-    private void upsertByPage(DataChangeEvent event, R readerConfig, W writerConfig) throws Exception {
-        Object primaryKey = event.getPrimaryKeyData().getValue();
-        // 关联数据变更不同时，则做整体更新
-        int count = getReader().countWholeData(readerConfig, primaryKey, event);
-        if (count == 0) {
-            return;
+    /**
+     * 多个从表同时变更时，同一文档会被并发地重复读取和写入，读取标识相同的并发读取合并为一次；
+     * 合并的是读取及提交写入，同一文档的写入由写入方按提交顺序执行
+     */
+    private CompletableFuture<Void> singleFlight(DataChangeEvent event, R readerConfig, W writerConfig,
+                                                 SyncAction action) throws Exception {
+        String readKey = getReader().getReadKey(readerConfig, event);
+        if (readKey == null) {
+            return action.run();
         }
-        int start = 0;
-        int limit = 50;
-        // 因为从表关联数据量可能会很大，这里做批次更新，防止一次更新的数据量过大
-        while (start < count) {
-            List<Map<String, Object>> data = getReader().getPageOfWholeData(readerConfig, primaryKey, event, start, limit);
-            if (CollectionUtils.isEmpty(data)) {
-                break;
+        return upsertFlights.execute(writerConfig.getId() + "|" + readKey, action::run);
+    }
+
+    @FunctionalInterface
+    private interface SyncAction {
+        CompletableFuture<Void> run() throws Exception;
+    }
+
+    private CompletableFuture<Void> upsertByPage(DataChangeEvent event, R readerConfig, W writerConfig) throws Exception {
+        return singleFlight(event, readerConfig, writerConfig, () -> streamUpsert(event, readerConfig, writerConfig));
+    }
+
+    private CompletableFuture<Void> streamUpsert(DataChangeEvent event, R readerConfig, W writerConfig) throws Exception {
+        Object primaryKey = event.getPrimaryKeyData().getValue();
+        int batchSize = getProperties().getReader().getBatchSize();
+        int maxOutstanding = Math.max(0, getProperties().getConsumer().getMaxOutstandingBatches());
+        // 因为从表关联数据量可能会很大，这里单次查询流式读取，分批更新，防止一次更新的数据量过大；
+        // 写入异步执行，读取下一批的同时写入上一批，未完成的批次超过上限时等待最早的批次完成
+        Deque<CompletableFuture<Void>> outstanding = new ArrayDeque<>();
+        getReader().streamWholeData(readerConfig, primaryKey, event, batchSize, data -> {
+            outstanding.add(getWriter().upsertAsync(writerConfig, data));
+            while (outstanding.size() > maxOutstanding) {
+                Futures.await(outstanding.poll());
             }
-            getWriter().upsert(writerConfig, data);
-            start += data.size();
-        }
+        });
+        return CompletableFuture.allOf(outstanding.toArray(new CompletableFuture[0]));
     }
 
     private boolean hasDel(DataChangeEvent data, String deleteKeyName, String hasDelValue) {
@@ -143,17 +326,31 @@ public abstract class AbstractSyncConsumer<R extends SyncBaseConfig, W extends S
         return Objects.equals(String.valueOf(deleteKey), hasDelValue);
     }
 
-    private void handleDelete(DataChangeEvent event, R readerConfig,  W writerConfig) throws Exception {
+    private CompletableFuture<Void> handleDelete(DataChangeEvent event, R readerConfig,  W writerConfig) throws Exception {
         if (writerConfig.getDelWholeData() == 1) {
-            getWriter().delete(writerConfig, event);
+            return getWriter().deleteAsync(writerConfig, event);
         } else {
-            handleUpdate(event, readerConfig, writerConfig);
+            return handleUpdate(event, readerConfig, writerConfig, null);
+        }
+    }
+
+    /**
+     * 按reader配置id获取当前生效的reader、writer配置
+     * @return 配置不存在或未配对时返回null
+     */
+    public SyncConfigPair<R, W> getConfigPair(Integer readerId) {
+        SyncPlan<R, W> plan = this.plan;
+        R reader = plan.getReaders().get(readerId);
+        W writer = plan.getWriters().get(readerId);
+        if (reader == null || writer == null) {
+            return null;
         }
+        return new SyncConfigPair<>(reader, writer);
     }
 
     public boolean support(DataChangeEvent event) {
         String key = getKey(event.getMetaData().getDb(), event.getMetaData().getTable());
-        return readerConfigMap.containsKey(key) && writerConfigMap.containsKey(key);
+        return plan.getPairs().containsKey(key) || isConfigEvent(event);
     }
 
     protected abstract SyncReader<R> getReader();
@@ -203,49 +400,183 @@ public abstract class AbstractSyncConsumer<R extends SyncBaseConfig, W extends S
 
     @Override
     public void afterPropertiesSet() {
-        refreshConfigMap();
-        executorService.scheduleAtFixedRate(this::refreshConfigMap, 60, 60, TimeUnit.SECONDS);
+        SyncClientProperties.Consumer consumerProperties = getProperties().getConsumer();
+        AtomicInteger threadIndex = new AtomicInteger();
+        fanOutExecutor = new ThreadPoolExecutor(consumerProperties.getFanOutThreads(), consumerProperties.getFanOutThreads(),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(consumerProperties.getFanOutQueueSize()), r -> {
+            Thread thread = new Thread(r, this.getClass().getSimpleName() + "_fan_out_" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        fanOutExecutor.allowCoreThreadTimeOut(true);
+        AtomicInteger fallbackThreadIndex = new AtomicInteger();
+        fallbackExecutor = new ThreadPoolExecutor(consumerProperties.getFallbackThreads(), consumerProperties.getFallbackThreads(),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, this.getClass().getSimpleName() + "_fallback_" + fallbackThreadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        fallbackExecutor.allowCoreThreadTimeOut(true);
+
+        SyncClientProperties.Config properties = getProperties().getConfig();
+        refreshConfig(true);
+        executorService.scheduleWithFixedDelay(() -> refreshConfig(false), properties.getCheckIntervalSeconds(),
+                properties.getCheckIntervalSeconds(), TimeUnit.SECONDS);
     }
 
     protected abstract SyncBaseConfigMapper<R> getReaderConfigMapper();
 
     protected abstract SyncBaseConfigMapper<W> getWriterConfigMapper();
 
-    private void refreshConfigMap() {
-        List<R> readerConfig;
-        try {
-            readerConfig = getReaderConfigMapper().selectAll();
-        } catch (Exception e) {
-            log.error(Thread.currentThread().getName() + ": Get sync reader config error.", e);
-            return;
+    protected abstract SyncClientProperties getProperties();
+
+    /**
+     * 同步链路中出现配置表的变更事件，立即刷新配置
+     */
+    private boolean isConfigEvent(DataChangeEvent event) {
+        if (!getProperties().getConfig().getTables().contains(event.getMetaData().getTable())) {
+            return false;
         }
-        if (CollectionUtils.isEmpty(readerConfig)) {
-            log.warn(Thread.currentThread().getName() + ": No sync reader config been set.");
+        // 配置库未知（尚未加载过配置）时只按表名判断，多刷新一次无害
+        SyncConfigVersion version = plan.getReaderVersion();
+        return version == null || version.getDbName() == null || version.getDbName().equalsIgnoreCase(event.getMetaData().getDb());
+    }
+
+    private void triggerConfigRefresh() {
+        if (!refreshScheduled.compareAndSet(false, true)) {
             return;
         }
-        Map<String, List<R>> map = new HashMap<>();
-        for (R config : readerConfig) {
-            map.computeIfAbsent(getKey(config.getDb(), config.getTable()), s -> new ArrayList<>())
-                    .add(config);
-        }
-        this.readerConfigMap = map;
+        executorService.schedule(() -> {
+            refreshScheduled.set(false);
+            refreshConfig(false);
+        }, CONFIG_EVENT_REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-        List<W> writerConfigs;
+    /**
+     * 根据配置版本刷新配置，版本无变化时不加载配置；
+     * reader和writer配置全部加载成功后才发布新的同步计划，任一失败则保留当前计划
+     * @param forceFull 是否强制全量加载
+     */
+    private synchronized void refreshConfig(boolean forceFull) {
+        SyncPlan<R, W> current = this.plan;
+        if (System.currentTimeMillis() - lastFullReloadTime >= getProperties().getConfig().getFullReloadIntervalSeconds() * 1000L) {
+            forceFull = true;
+        }
+        SyncConfigVersion readerVersion;
+        SyncConfigVersion writerVersion;
+        Map<Integer, R> readers;
+        Map<Integer, W> writers;
         try {
-            writerConfigs = getWriterConfigMapper().selectAll();
+            readerVersion = getReaderConfigMapper().selectVersion();
+            writerVersion = getWriterConfigMapper().selectVersion();
+            readers = loadConfig(getReaderConfigMapper(), getReader()::prepare, current.getReaders(),
+                    current.getReaderVersion(), readerVersion, forceFull);
+            writers = loadConfig(getWriterConfigMapper(), getWriter()::prepare, current.getWriters(),
+                    current.getWriterVersion(), writerVersion, forceFull);
         } catch (Exception e) {
-            log.error(Thread.currentThread().getName() + ": Get sync writer config error.", e);
+            log.error(Thread.currentThread().getName() + ": Refresh sync config error, keep current config.", e);
             return;
         }
-        if (CollectionUtils.isEmpty(writerConfigs)) {
-            log.warn(Thread.currentThread().getName() + ": No sync writer config been set.");
+        if (forceFull) {
+            lastFullReloadTime = System.currentTimeMillis();
+        }
+        if (readers == current.getReaders() && writers == current.getWriters()) {
+            this.plan = current.withVersion(readerVersion, writerVersion);
             return;
         }
-        Map<String, List<W>> temp = new HashMap<>();
-        for (W config : writerConfigs) {
-            temp.computeIfAbsent(getKey(config.getDb(), config.getTable()), s -> new ArrayList<>())
-                    .add(config);
+        if (CollectionUtils.isEmpty(readers)) {
+            log.warn(Thread.currentThread().getName() + ": No sync reader config been set.");
+        }
+        if (CollectionUtils.isEmpty(writers)) {
+            log.warn(Thread.currentThread().getName() + ": No sync writer config been set.");
+        }
+        this.plan = buildPlan(readers, writers, readerVersion, writerVersion);
+        log.info(Thread.currentThread().getName() + ": Sync config refreshed, readers={}, writers={}", readers.size(), writers.size());
+    }
+
+    /**
+     * 加载配置，配置数量变化（物理删除）或强制全量时全量加载，否则只加载更新时间不早于上次版本的配置；
+     * 新加载的配置经过preparer预处理
+     * @return 无变化时返回current本身
+     */
+    private <T extends SyncBaseConfig> Map<Integer, T> loadConfig(SyncBaseConfigMapper<T> mapper, Consumer<T> preparer,
+                                                                  Map<Integer, T> current,
+                                                                  SyncConfigVersion currentVersion, SyncConfigVersion version,
+                                                                  boolean forceFull) {
+        if (forceFull || currentVersion == null || currentVersion.getLastUpdateTime() == null
+                || version.getLastUpdateTime() == null || !Objects.equals(currentVersion.getTotal(), version.getTotal())
+                || version.getLastUpdateTime().before(currentVersion.getLastUpdateTime())) {
+            Map<Integer, T> configs = new HashMap<>();
+            for (T config : mapper.selectAll()) {
+                preparer.accept(config);
+                configs.put(config.getId(), config);
+            }
+            return configs;
+        }
+        boolean unsettled = currentVersion.getDbTime() == null
+                || currentVersion.getDbTime().getTime() - currentVersion.getLastUpdateTime().getTime() < CONFIG_SETTLE_MILLIS;
+        if (!unsettled && version.getLastUpdateTime().equals(currentVersion.getLastUpdateTime())) {
+            return current;
+        }
+        List<T> changed = mapper.selectUpdatedSince(currentVersion.getLastUpdateTime());
+        if (CollectionUtils.isEmpty(changed)) {
+            return current;
+        }
+        Map<Integer, T> configs = new HashMap<>(current);
+        for (T config : changed) {
+            if (config.getIsDel() != null && config.getIsDel() == 1) {
+                configs.remove(config.getId());
+            } else {
+                preparer.accept(config);
+                configs.put(config.getId(), config);
+            }
+        }
+        return configs;
+    }
+
+    private SyncPlan<R, W> buildPlan(Map<Integer, R> readers, Map<Integer, W> writers,
+                                     SyncConfigVersion readerVersion, SyncConfigVersion writerVersion) {
+        Map<String, List<SyncConfigPair<R, W>>> pairs = new HashMap<>();
+        for (R reader : readers.values()) {
+            W writer = writers.get(reader.getId());
+            if (writer == null) {
+                log.warn("Reader config can not match any writerConfig, readerConfig id = " + reader.getId());
+                continue;
+            }
+            pairs.computeIfAbsent(getKey(reader.getDb(), reader.getTable()), s -> new ArrayList<>())
+                    .add(new SyncConfigPair<>(reader, writer));
+        }
+        return new SyncPlan<>(readers, writers, pairs, readerVersion, writerVersion);
+    }
+
+    /**
+     * 同步计划，一次刷新得到的reader、writer配置及其配对关系，整体发布，保证一致
+     */
+    @Getter
+    @AllArgsConstructor
+    protected static class SyncPlan<R, W> {
+        private final Map<Integer, R> readers;
+        private final Map<Integer, W> writers;
+        /**
+         * 库表 -> 配对的reader、writer配置
+         */
+        private final Map<String, List<SyncConfigPair<R, W>>> pairs;
+        private final SyncConfigVersion readerVersion;
+        private final SyncConfigVersion writerVersion;
+
+        private static <R, W> SyncPlan<R, W> empty() {
+            return new SyncPlan<>(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(), null, null);
         }
-        this.writerConfigMap = temp;
+
+        private SyncPlan<R, W> withVersion(SyncConfigVersion readerVersion, SyncConfigVersion writerVersion) {
+            return new SyncPlan<>(readers, writers, pairs, readerVersion, writerVersion);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class SyncConfigPair<R, W> {
+        private final R reader;
+        private final W writer;
     }
 }
@@ -0,0 +1,13 @@
+package net.scat.sync.consumer.base;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量数据处理回调，用于流式读取时逐批处理数据
+ */
+@FunctionalInterface
+public interface SyncBatchHandler {
+
+    void handle(List<Map<String, Object>> batch) throws Exception;
+}
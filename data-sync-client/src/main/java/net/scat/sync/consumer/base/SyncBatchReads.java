@@ -0,0 +1,29 @@
+package net.scat.sync.consumer.base;
+
+import net.scat.sync.model.DataChangeEvent;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一批事件预先批量读取的整条数据，按事件对象及reader配置id获取
+ */
+public class SyncBatchReads {
+    public static final SyncBatchReads EMPTY = new SyncBatchReads();
+
+    private final Map<DataChangeEvent, Map<Integer, List<Map<String, Object>>>> data = new IdentityHashMap<>();
+
+    void put(DataChangeEvent event, Integer readerId, List<Map<String, Object>> wholeData) {
+        data.computeIfAbsent(event, e -> new HashMap<>()).put(readerId, wholeData);
+    }
+
+    /**
+     * @return 未预先读取时返回null
+     */
+    List<Map<String, Object>> get(DataChangeEvent event, Integer readerId) {
+        Map<Integer, List<Map<String, Object>>> readerData = data.get(event);
+        return readerData == null ? null : readerData.get(readerId);
+    }
+}
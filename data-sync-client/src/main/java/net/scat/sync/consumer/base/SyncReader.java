@@ -4,15 +4,52 @@ package net.scat.sync.consumer.base;
 import net.scat.sync.model.DataChangeEvent;
 import net.scat.sync.model.SyncBaseConfig;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public interface SyncReader<T extends SyncBaseConfig> {
+    /**
+     * 配置加载时预处理配置，抛出异常时本次配置刷新失败
+     */
+    default void prepare(T config) {
+    }
+
+    /**
+     * 整体数据读取的唯一标识，标识相同时读取结果相同，用于合并并发的相同读取；返回null时不合并
+     */
+    default String getReadKey(T config, DataChangeEvent event) {
+        return null;
+    }
+
     /**
      * 获取整条数据
      */
     List<Map<String, Object>> getWholeData(T config, Object primaryKey, DataChangeEvent event);
 
+    /**
+     * 主表更新事件变更的文档字段，由事件前后数据直接得到，无需读取整条数据；
+     * 返回空时表示变更不影响文档，返回null时表示无法确定，需要整条更新
+     */
+    default Map<String, Object> getChangedData(T config, DataChangeEvent event) {
+        return null;
+    }
+
+    /**
+     * 是否支持批量读取该事件的整条数据
+     */
+    default boolean supportBatch(T config, DataChangeEvent event) {
+        return false;
+    }
+
+    /**
+     * 批量读取多个事件的整条数据，合并为一次查询后按key拆分；
+     * 返回事件对象 -> 整条数据，未包含在结果中的事件逐条读取
+     */
+    default Map<DataChangeEvent, List<Map<String, Object>>> getBatchWholeData(T config, List<DataChangeEvent> events) {
+        return Collections.emptyMap();
+    }
+
     /**
      * 获取更新数据
      */
@@ -27,4 +64,9 @@ public interface SyncReader<T extends SyncBaseConfig> {
      * 获取整体数据分页
      */
     List<Map<String, Object>> getPageOfWholeData(T config, Object primaryKey, DataChangeEvent event, int start, int limit);
+
+    /**
+     * 流式读取整体数据，单次查询，每读满batchSize条回调一次handler
+     */
+    void streamWholeData(T config, Object primaryKey, DataChangeEvent event, int batchSize, SyncBatchHandler handler) throws Exception;
 }
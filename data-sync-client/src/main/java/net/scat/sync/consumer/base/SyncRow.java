@@ -0,0 +1,112 @@
+package net.scat.sync.consumer.base;
+
+import java.util.*;
+
+/**
+ * 查询结果的一行，字段信息由同一查询的所有行共享，每行只保存字段值数组；
+ * 不在查询结果中的字段（如维表查询补充的字段）保存在额外的map中。字段名查找不区分大小写，查询结果中的字段不能移除
+ */
+public class SyncRow extends AbstractMap<String, Object> {
+    private final SyncRowSchema schema;
+    private final Object[] values;
+    private Map<String, Object> extra;
+
+    public SyncRow(SyncRowSchema schema, Object[] values) {
+        this.schema = schema;
+        this.values = values;
+    }
+
+    public SyncRowSchema getSchema() {
+        return schema;
+    }
+
+    public Object getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * 不在查询结果中的字段，没有时返回空map
+     */
+    public Map<String, Object> getExtra() {
+        return extra == null ? Collections.emptyMap() : extra;
+    }
+
+    @Override
+    public int size() {
+        return values.length + (extra == null ? 0 : extra.size());
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.indexOf(key) >= 0 || (extra != null && extra.containsKey(key));
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = schema.indexOf(key);
+        if (index >= 0) {
+            return values[index];
+        }
+        return extra == null ? null : extra.get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = schema.indexOf(key);
+        if (index >= 0) {
+            Object old = values[index];
+            values[index] = value;
+            return old;
+        }
+        if (extra == null) {
+            extra = new LinkedHashMap<>();
+        }
+        return extra.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (schema.indexOf(key) >= 0) {
+            throw new UnsupportedOperationException("Column of query result can not be removed, column=" + key);
+        }
+        return extra == null ? null : extra.remove(key);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int index;
+                    private final Iterator<Entry<String, Object>> extraIterator = getExtra().entrySet().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < values.length || extraIterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (index < values.length) {
+                            int current = index++;
+                            return new SimpleEntry<String, Object>(schema.getColumn(current), values[current]) {
+                                @Override
+                                public Object setValue(Object value) {
+                                    values[current] = value;
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+                        return extraIterator.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SyncRow.this.size();
+            }
+        };
+    }
+}
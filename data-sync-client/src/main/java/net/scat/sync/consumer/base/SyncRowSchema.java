@@ -0,0 +1,75 @@
+package net.scat.sync.consumer.base;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 一次查询结果的字段信息，查询开始时解析一次，由该查询的所有行共享；字段名查找不区分大小写。
+ * 查询结果中字段名重复（包括只有大小写不同）时合并为一个字段，与LinkedCaseInsensitiveMap一致，以最后一个为准，避免文档中出现重复的字段
+ */
+public class SyncRowSchema {
+    private final String[] columns;
+    /**
+     * 各字段取值的查询结果列（从0开始）
+     */
+    private final int[] labelIndexes;
+    private final Map<String, Integer> indexes;
+    private final Map<String, Integer> lowerCaseIndexes;
+
+    /**
+     * @param labels 查询结果的列名，可能重复
+     */
+    public SyncRowSchema(String[] labels) {
+        List<String> columns = new ArrayList<>(labels.length);
+        List<Integer> labelIndexes = new ArrayList<>(labels.length);
+        this.lowerCaseIndexes = new HashMap<>(labels.length * 2);
+        for (int i = 0; i < labels.length; i++) {
+            Integer index = lowerCaseIndexes.putIfAbsent(labels[i].toLowerCase(Locale.ROOT), columns.size());
+            if (index == null) {
+                columns.add(labels[i]);
+                labelIndexes.add(i);
+            } else {
+                columns.set(index, labels[i]);
+                labelIndexes.set(index, i);
+            }
+        }
+        this.columns = columns.toArray(new String[0]);
+        this.labelIndexes = labelIndexes.stream().mapToInt(Integer::intValue).toArray();
+        this.indexes = new HashMap<>(this.columns.length * 2);
+        for (int i = 0; i < this.columns.length; i++) {
+            indexes.put(this.columns[i], i);
+        }
+    }
+
+    public int size() {
+        return columns.length;
+    }
+
+    public String getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * 字段取值的查询结果列（从0开始），重复的列名取最后一列
+     */
+    public int getLabelIndex(int index) {
+        return labelIndexes[index];
+    }
+
+    /**
+     * @return 不存在时返回-1
+     */
+    public int indexOf(Object column) {
+        if (!(column instanceof String)) {
+            return -1;
+        }
+        Integer index = indexes.get(column);
+        if (index == null) {
+            index = lowerCaseIndexes.get(((String) column).toLowerCase(Locale.ROOT));
+        }
+        return index == null ? -1 : index;
+    }
+}
@@ -3,11 +3,21 @@ package net.scat.sync.consumer.base;
 
 import net.scat.sync.model.DataChangeEvent;
 import net.scat.sync.model.SyncBaseConfig;
+import net.scat.sync.utils.Futures;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface SyncWriter<T extends SyncBaseConfig> {
+    /**
+     * 配置加载时预处理配置，抛出异常时本次配置刷新失败
+     */
+    default void prepare(T config) {
+    }
+
     /**
      * 整条数据更新，不存在则插入
      */
@@ -19,4 +29,49 @@ public interface SyncWriter<T extends SyncBaseConfig> {
     void update(T config, Map<String, Object> updateData) throws Exception;
 
     void delete(T config, DataChangeEvent event) throws Exception;
+
+    /**
+     * 异步整条数据更新，写入完成时future完成；默认同步执行
+     */
+    default CompletableFuture<Void> upsertAsync(T config, List<Map<String, Object>> data) throws Exception {
+        upsert(config, data);
+        return Futures.done();
+    }
+
+    /**
+     * 异步局部数据更新，更新写入es（缓冲的更新发送完成）时future完成，重试耗尽后future异常完成；默认同步执行
+     */
+    default CompletableFuture<Void> updateAsync(T config, Map<String, Object> updateData) throws Exception {
+        update(config, updateData);
+        return Futures.done();
+    }
+
+    /**
+     * 是否支持按事件定位文档做局部更新
+     */
+    default boolean supportPartialUpdate(T config) {
+        return false;
+    }
+
+    /**
+     * 按事件定位文档，只更新变更的字段；文档不存在时在executor中调用wholeData读取整条数据写入，
+     * 整条写入与局部更新占用同一文档的写入顺序，同一文档之后提交的写入等待整条写入完成；
+     * 默认不做局部更新，同步读取整条数据后整条更新
+     */
+    default CompletableFuture<Void> partialUpdateAsync(T config, DataChangeEvent event, Map<String, Object> doc,
+                                                       Callable<List<Map<String, Object>>> wholeData, Executor executor) throws Exception {
+        List<Map<String, Object>> data = wholeData.call();
+        if (data == null || data.isEmpty()) {
+            return Futures.done();
+        }
+        return upsertAsync(config, data);
+    }
+
+    /**
+     * 异步删除，删除完成时future完成；默认同步执行
+     */
+    default CompletableFuture<Void> deleteAsync(T config, DataChangeEvent event) throws Exception {
+        delete(config, event);
+        return Futures.done();
+    }
 }
@@ -0,0 +1,110 @@
+package net.scat.sync.consumer.impl;
+
+import lombok.Getter;
+
+/**
+ * AIMD自适应并发上限：请求过载（耗时超过阈值或被拒绝）时上限按比例下降，未过载且并发达到上限一半以上时增加固定步长；
+ * 上一次下降之前发出的请求的结果不再引起下降，避免同一次过载连续下降多次
+ */
+public class AdaptiveLimiter {
+    @Getter
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int increment;
+    private final double backoffRatio;
+    private int limit;
+    private int inFlight;
+    private long lastDecreaseNanos = System.nanoTime();
+    private long decreases;
+    private long throttled;
+
+    public AdaptiveLimiter(String name, int minLimit, int maxLimit, int increment, double backoffRatio) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.increment = Math.max(1, increment);
+        this.backoffRatio = backoffRatio;
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * 并发达到上限时阻塞等待
+     * @return 是否取得许可，等待被中断时不取得许可，保留中断状态
+     */
+    public synchronized boolean acquire() {
+        if (inFlight >= limit) {
+            throttled++;
+            while (inFlight >= limit) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * 并发未达到上限时取得许可，否则立即返回false，不计入等待次数
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * 记录一次请求的结果，在释放许可前调用
+     * @param startNanos 请求发出的时间
+     */
+    public synchronized void onSample(long startNanos, boolean overloaded) {
+        if (overloaded) {
+            if (startNanos - lastDecreaseNanos > 0) {
+                limit = Math.max(minLimit, (int) (limit * backoffRatio));
+                lastDecreaseNanos = System.nanoTime();
+                decreases++;
+            }
+        } else if (limit < maxLimit && inFlight * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + increment);
+            notifyAll();
+        }
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * 上限下降的次数
+     */
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    /**
+     * 因达到上限而等待的次数
+     */
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("limit=%s, inFlight=%s, decreases=%s, throttled=%s", limit, inFlight, decreases, throttled);
+    }
+}
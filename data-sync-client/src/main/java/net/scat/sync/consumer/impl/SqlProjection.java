@@ -0,0 +1,213 @@
+package net.scat.sync.consumer.impl;
+
+import lombok.Getter;
+import net.scat.sync.model.DataChangeEvent;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 表字段到文档字段的投影，用于直接从变更事件的数据生成文档，无需回查数据库；
+ * 来源为配置的字段映射，或者对单表简单查询sql的解析
+ */
+public class SqlProjection {
+    private static final Pattern SIMPLE_SELECT = Pattern.compile(
+            "^\\s*select\\s+(.+?)\\s+from\\s+(?:`?\\w+`?\\.)?`?(\\w+)`?(?:\\s+(?:as\\s+)?`?(\\w+)`?)?\\s+where\\s+(.+?)\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern KEY_CONDITION = Pattern.compile(
+            "^(?:`?(\\w+)`?\\.)?`?(\\w+)`?\\s*=\\s*'?#\\{(\\w+)}'?$", Pattern.DOTALL);
+    private static final Pattern SELECT_ITEM = Pattern.compile(
+            "^(?:`?(\\w+)`?\\.)?(?:`?(\\w+)`?|(\\*))(?:\\s+(?:as\\s+)?`?(\\w+)`?)?$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNSUPPORTED = Pattern.compile(
+            "\\(|\\bjoin\\b|\\bunion\\b|\\bdistinct\\b|\\bgroup\\s+by\\b|\\border\\s+by\\b|\\blimit\\b|\\bhaving\\b|\\band\\b|\\bor\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * 表字段 -> 文档字段
+     */
+    @Getter
+    private final Map<String, String> columnToField;
+    /**
+     * 是否投影全部字段（select *）
+     */
+    @Getter
+    private final boolean allColumns;
+    /**
+     * 文档对应的主键字段，为空时不校验
+     */
+    @Getter
+    private final String keyColumn;
+
+    private SqlProjection(Map<String, String> columnToField, boolean allColumns, String keyColumn) {
+        this.columnToField = Collections.unmodifiableMap(columnToField);
+        this.allColumns = allColumns;
+        this.keyColumn = keyColumn;
+    }
+
+    /**
+     * 解析配置的字段映射，格式 column[:field]，多个用","分割
+     */
+    public static SqlProjection parseMapping(String mapping) {
+        Map<String, String> columnToField = new LinkedHashMap<>();
+        for (String item : mapping.split(",")) {
+            if (StringUtils.isBlank(item)) {
+                continue;
+            }
+            String[] pair = item.split(":");
+            String column = pair[0].trim();
+            String field = pair.length > 1 && StringUtils.isNotBlank(pair[1]) ? pair[1].trim() : column;
+            columnToField.put(column, field);
+        }
+        return new SqlProjection(columnToField, false, null);
+    }
+
+    /**
+     * 解析单表按主键查询的简单sql，形如 select a, b as c from table where id = #{id}；
+     * 含有关联、函数、子查询或其他条件的sql无法由事件数据生成，返回null
+     */
+    public static SqlProjection analyze(String sql, String table) {
+        if (StringUtils.isBlank(sql)) {
+            return null;
+        }
+        Matcher matcher = SIMPLE_SELECT.matcher(sql);
+        if (!matcher.matches() || !matcher.group(2).equalsIgnoreCase(table)) {
+            return null;
+        }
+        String selectList = matcher.group(1);
+        String alias = matcher.group(3);
+        String where = matcher.group(4).trim();
+        if (UNSUPPORTED.matcher(selectList + " from " + table + " where " + where).find()) {
+            return null;
+        }
+        Matcher condition = KEY_CONDITION.matcher(where);
+        if (!condition.matches() || !condition.group(2).equals(condition.group(3))
+                || !matchesQualifier(condition.group(1), table, alias)) {
+            return null;
+        }
+        Map<String, String> columnToField = new LinkedHashMap<>();
+        boolean allColumns = false;
+        for (String item : selectList.split(",")) {
+            Matcher itemMatcher = SELECT_ITEM.matcher(item.trim());
+            if (!itemMatcher.matches() || !matchesQualifier(itemMatcher.group(1), table, alias)) {
+                return null;
+            }
+            if (itemMatcher.group(3) != null) {
+                if (itemMatcher.group(4) != null) {
+                    return null;
+                }
+                allColumns = true;
+                continue;
+            }
+            String column = itemMatcher.group(2);
+            columnToField.put(column, itemMatcher.group(4) != null ? itemMatcher.group(4) : column);
+        }
+        return new SqlProjection(columnToField, allColumns, condition.group(2));
+    }
+
+    private static boolean matchesQualifier(String qualifier, String table, String alias) {
+        return qualifier == null || qualifier.equalsIgnoreCase(table) || qualifier.equalsIgnoreCase(alias);
+    }
+
+    /**
+     * 由事件数据生成文档，事件中缺少映射字段时返回null
+     */
+    public Map<String, Object> project(DataChangeEvent event) {
+        if (event.getAfter() == null) {
+            return null;
+        }
+        Map<String, DataChangeEvent.FieldData> fields = event.getAfter().getFields();
+        if (keyColumn != null && !keyColumn.equalsIgnoreCase(event.getMetaData().getPrimaryKeyName())) {
+            return null;
+        }
+        Map<String, Object> document = new LinkedHashMap<>();
+        if (allColumns) {
+            for (DataChangeEvent.FieldData field : fields.values()) {
+                document.put(field.getName(), toDocumentValue(field.getValue()));
+            }
+        }
+        for (Map.Entry<String, String> entry : columnToField.entrySet()) {
+            DataChangeEvent.FieldData field = getField(fields, entry.getKey());
+            if (field == null) {
+                return null;
+            }
+            document.put(entry.getValue(), toDocumentValue(field.getValue()));
+        }
+        return document;
+    }
+
+    /**
+     * 由更新事件前后数据生成变更字段的局部文档，值取变更后的数据；
+     * 主键或关联字段变更、变更前数据缺少字段、或变更字段不在投影中且投影不完整时返回null，需要整条更新
+     * @param complete 投影是否覆盖了文档依赖的全部字段，是时不在投影中的字段变更不影响文档
+     * @param joinColumns 关联查询的参数字段（如关联键），变更后关联查询的结果随之变化，需要整条更新
+     */
+    public Map<String, Object> projectChanges(DataChangeEvent event, boolean complete, Collection<String> joinColumns) {
+        if (event.getBefore() == null || event.getAfter() == null) {
+            return null;
+        }
+        Map<String, DataChangeEvent.FieldData> beforeFields = event.getBefore().getFields();
+        Map<String, Object> document = new LinkedHashMap<>();
+        for (DataChangeEvent.FieldData field : event.getAfter().getFields().values()) {
+            DataChangeEvent.FieldData before = getField(beforeFields, field.getName());
+            if (before == null) {
+                return null;
+            }
+            if (Objects.equals(before.getValue(), field.getValue())) {
+                continue;
+            }
+            String column = field.getName();
+            if (column.equalsIgnoreCase(event.getMetaData().getPrimaryKeyName()) || column.equalsIgnoreCase(keyColumn)
+                    || joinColumns.stream().anyMatch(column::equalsIgnoreCase)) {
+                return null;
+            }
+            String documentField = getDocumentField(column);
+            if (documentField == null) {
+                if (complete) {
+                    continue;
+                }
+                return null;
+            }
+            document.put(documentField, toDocumentValue(field.getValue()));
+        }
+        return document;
+    }
+
+    private String getDocumentField(String column) {
+        String field = columnToField.get(column);
+        if (field != null) {
+            return field;
+        }
+        for (Map.Entry<String, String> entry : columnToField.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(column)) {
+                return entry.getValue();
+            }
+        }
+        return allColumns ? column : null;
+    }
+
+    private DataChangeEvent.FieldData getField(Map<String, DataChangeEvent.FieldData> fields, String column) {
+        DataChangeEvent.FieldData field = fields.get(column);
+        if (field != null) {
+            return field;
+        }
+        for (Map.Entry<String, DataChangeEvent.FieldData> entry : fields.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(column)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 事件中的整数为BigInteger，与jdbc读取的类型保持一致，转为Long
+     */
+    private Object toDocumentValue(Object value) {
+        if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            return ((BigInteger) value).longValue();
+        }
+        return value;
+    }
+}
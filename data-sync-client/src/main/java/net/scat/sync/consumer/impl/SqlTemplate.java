@@ -0,0 +1,232 @@
+package net.scat.sync.consumer.impl;
+
+import lombok.Getter;
+import net.scat.sync.model.DataChangeEvent;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 配置加载时解析的sql模板，#{field_name}参数替换为?占位符，执行时以PreparedStatement绑定参数；
+ * 字符串中的参数（如'#{name}'、"%#{name}%"）转换为占位符或concat表达式，兼容原有按字符串替换的写法。
+ * 占位符只能代替值，参数用作表名、列名等标识符（反引号内、与标识符相连、from/join/order by等之后）或limit/offset时，
+ * 解析失败；in (#{id})按单个值绑定，不再按逗号展开。
+ * 数据源开启useServerPrepStmts、cachePrepStmts时，MySQL可复用语句及执行计划
+ */
+public class SqlTemplate {
+    private static final Pattern PARAM = Pattern.compile("#\\{(\\w+)}");
+    /**
+     * 参数之前为这些关键字时，参数处于标识符或limit的位置，不能绑定为值
+     */
+    private static final Pattern NON_VALUE_PREFIX = Pattern.compile(
+            "(?i)(\\b(from|join|into|update|table|by|as|limit|offset)\\s+|\\blimit\\s+\\d+\\s*,\\s*)$");
+
+    @Getter
+    private final String sql;
+    /**
+     * 占位符依次对应的参数名
+     */
+    @Getter
+    private final List<String> paramNames;
+    /**
+     * 各占位符在sql中的位置
+     */
+    private final int[] placeholders;
+
+    private SqlTemplate(String sql, List<String> paramNames, int[] placeholders) {
+        this.sql = sql;
+        this.paramNames = Collections.unmodifiableList(paramNames);
+        this.placeholders = placeholders;
+    }
+
+    /**
+     * @throws IllegalArgumentException 字符串或标识符未闭合，或参数不能绑定为值
+     */
+    public static SqlTemplate parse(String template) {
+        if (StringUtils.isBlank(template)) {
+            return null;
+        }
+        StringBuilder sql = new StringBuilder(template.length());
+        List<String> paramNames = new ArrayList<>();
+        List<Integer> placeholders = new ArrayList<>();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == '\'' || c == '"') {
+                int end = findQuoteEnd(template, i);
+                appendLiteral(sql, paramNames, placeholders, c, template.substring(i + 1, end));
+                i = end + 1;
+            } else if (c == '`') {
+                int end = findQuoteEnd(template, i);
+                String identifier = template.substring(i, end + 1);
+                if (PARAM.matcher(identifier).find()) {
+                    throw new IllegalArgumentException("Parameter can not be used as identifier " + identifier + " in sql: " + template);
+                }
+                sql.append(identifier);
+                i = end + 1;
+            } else if (c == '#' && template.startsWith("#{", i) && template.indexOf('}', i) > 0) {
+                int end = template.indexOf('}', i);
+                checkValuePosition(template, sql, i, end);
+                paramNames.add(template.substring(i + 2, end));
+                placeholders.add(sql.length());
+                sql.append('?');
+                i = end + 1;
+            } else {
+                sql.append(c);
+                i++;
+            }
+        }
+        return new SqlTemplate(sql.toString(), paramNames, placeholders.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * 引号之外的参数，与标识符相连（如t_#{suffix}、t.#{column}、#{func}(）或位于标识符、limit的位置时不能绑定为值
+     */
+    private static void checkValuePosition(String template, StringBuilder sql, int start, int end) {
+        boolean joined = (start > 0 && isIdentifierPart(template.charAt(start - 1)))
+                || (end + 1 < template.length() && (isIdentifierPart(template.charAt(end + 1)) || template.charAt(end + 1) == '('));
+        if (joined || NON_VALUE_PREFIX.matcher(sql).find()) {
+            throw new IllegalArgumentException(String.format("Parameter %s can only be used as a value, not as identifier or limit, sql: %s",
+                    template.substring(start, end + 1), template));
+        }
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+    /**
+     * 查找引号（单引号、双引号或反引号）的结束位置，引号重复两次或反斜杠（反引号除外）为转义
+     */
+    private static int findQuoteEnd(String template, int start) {
+        char quote = template.charAt(start);
+        int i = start + 1;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == '\\' && quote != '`') {
+                i += 2;
+                continue;
+            }
+            if (c == quote) {
+                if (i + 1 < template.length() && template.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i;
+            }
+            i++;
+        }
+        throw new IllegalArgumentException("Unclosed " + (quote == '`' ? "identifier" : "string literal") + " in sql: " + template);
+    }
+
+    /**
+     * 字符串内没有参数时原样保留；整个字符串为一个参数时替换为占位符；否则转换为concat表达式
+     */
+    private static void appendLiteral(StringBuilder sql, List<String> paramNames, List<Integer> placeholders, char quote, String content) {
+        Matcher matcher = PARAM.matcher(content);
+        if (!matcher.find()) {
+            sql.append(quote).append(content).append(quote);
+            return;
+        }
+        if (matcher.start() == 0 && matcher.end() == content.length()) {
+            paramNames.add(matcher.group(1));
+            placeholders.add(sql.length());
+            sql.append('?');
+            return;
+        }
+        sql.append("concat(");
+        int last = 0;
+        do {
+            if (matcher.start() > last) {
+                sql.append(quote).append(content, last, matcher.start()).append(quote).append(", ");
+            }
+            paramNames.add(matcher.group(1));
+            placeholders.add(sql.length());
+            sql.append('?');
+            last = matcher.end();
+            if (last < content.length()) {
+                sql.append(", ");
+            }
+        } while (matcher.find());
+        if (last < content.length()) {
+            sql.append(quote).append(content.substring(last)).append(quote);
+        }
+        sql.append(')');
+    }
+
+    /**
+     * 包装为外层查询，参数不变
+     */
+    public SqlTemplate wrap(String prefix, String suffix) {
+        int[] shifted = new int[placeholders.length];
+        for (int i = 0; i < shifted.length; i++) {
+            shifted[i] = placeholders[i] + prefix.length();
+        }
+        return new SqlTemplate(prefix + sql + suffix, paramNames, shifted);
+    }
+
+    /**
+     * 展开为多值查询，模板只能有一个参数，形如 where id in (#{id})，参数占位符展开为count个
+     */
+    public SqlTemplate expand(int count) {
+        if (placeholders.length != 1) {
+            throw new IllegalStateException("Only sql with single parameter can be expanded, sql=" + sql);
+        }
+        int position = placeholders[0];
+        StringBuilder expanded = new StringBuilder(sql.length() + count * 2);
+        expanded.append(sql, 0, position);
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                expanded.append(',');
+            }
+            positions[i] = expanded.length();
+            expanded.append('?');
+        }
+        expanded.append(sql, position + 1, sql.length());
+        return new SqlTemplate(expanded.toString(), Collections.nCopies(count, paramNames.get(0)), positions);
+    }
+
+    /**
+     * 按参数名从事件字段中取值，生成绑定参数
+     */
+    public Object[] bind(Map<String, DataChangeEvent.FieldData> fields) {
+        return bind(name -> {
+            DataChangeEvent.FieldData field = fields == null ? null : fields.get(name);
+            return field == null ? null : field.getValue();
+        });
+    }
+
+    public Object[] bind(Function<String, Object> values) {
+        Object[] args = new Object[paramNames.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = toJdbcValue(values.apply(paramNames.get(i)));
+        }
+        return args;
+    }
+
+    /**
+     * 事件中的值转换为jdbc驱动直接支持的类型
+     */
+    public static Object toJdbcValue(Object value) {
+        if (value instanceof BigInteger) {
+            BigInteger integer = (BigInteger) value;
+            return integer.bitLength() < 64 ? (Object) integer.longValue() : new BigDecimal(integer);
+        }
+        if (value instanceof Date && !(value instanceof java.sql.Date) && !(value instanceof Timestamp) && !(value instanceof Time)) {
+            return new Timestamp(((Date) value).getTime());
+        }
+        if (value instanceof LocalTime) {
+            return Time.valueOf((LocalTime) value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,241 @@
+package net.scat.sync.consumer.impl;
+
+import com.google.common.collect.Lists;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.config.SyncClientProperties;
+import net.scat.sync.consumer.base.AbstractSyncConsumer.SyncConfigPair;
+import net.scat.sync.mapper.SyncBootstrapMapper;
+import net.scat.sync.model.SyncBootstrapChunk;
+import net.scat.sync.model.SyncBootstrapTask;
+import net.scat.sync.model.SyncEsWriterConfig;
+import net.scat.sync.model.SyncSqlReaderConfig;
+import net.scat.sync.server.SyncResetPointService;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 全量初始化：按主表主键范围拆分分片，多线程并行执行；每个分片流式读取主键，按批量查询sql读取整条数据后批量写入，
+ * 完成的分片记录到数据库，中断后可继续执行未完成的分片；全部完成后把消费位点重置到任务开始时间，由增量同步补上期间的变更。
+ * 要求配置为主表，主键为整数，且设置了批量查询sql；每个执行线程同时占用两个数据库连接。
+ * 指定了写入的索引时（重建索引），经批量导入写入该索引，只创建不存在的文档
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SyncBootstrapService {
+    private static final int STATUS_RUNNING = 0;
+    private static final int STATUS_DONE = 1;
+    private static final int STATUS_FAILED = 2;
+    private final SyncEsBySqlConsumer consumer;
+    private final SyncSqlReader syncSqlReader;
+    private final SyncEsWriter syncEsWriter;
+    private final SyncBootstrapMapper bootstrapMapper;
+    private final SyncClientProperties properties;
+    @Autowired(required = false)
+    private SyncResetPointService resetPointService;
+    private final Map<Long, CompletableFuture<Boolean>> runningTasks = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        int threads = properties.getBootstrap().getThreads();
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "SyncBootstrapService_worker_" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 创建全量初始化任务并开始执行
+     * @param chunkSize 每个分片的主键范围大小，为空时使用默认值
+     * @param groupId 完成后重置消费位点的消费组，为空时不重置
+     * @return 任务id
+     */
+    public Long start(Integer readerConfId, Long chunkSize, String groupId) {
+        SyncBootstrapTask task = create(readerConfId, chunkSize, groupId, null);
+        execute(task.getId());
+        return task.getId();
+    }
+
+    /**
+     * 创建全量初始化任务及分片，由{@link #execute(Long)}执行
+     * @param targetIndex 写入的索引，为空时写入配置的索引
+     */
+    public SyncBootstrapTask create(Integer readerConfId, Long chunkSize, String groupId, String targetIndex) {
+        SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair = getConfigPair(readerConfId);
+        SyncSqlReaderConfig readerConfig = pair.getReader();
+        SyncBootstrapTask task = new SyncBootstrapTask();
+        task.setReaderConfId(readerConfId);
+        task.setGroupId(StringUtils.defaultString(groupId));
+        task.setTargetIndex(StringUtils.defaultString(targetIndex));
+        task.setChunkSize(chunkSize != null && chunkSize > 0 ? chunkSize : properties.getBootstrap().getChunkSize());
+        // 先记录开始时间再读取主键范围，之后的变更都能由增量同步补上；
+        // 取源库时间，与事件时间同一时钟，不受应用服务器时钟偏差影响，再提前一段余量
+        Date dbTime = syncSqlReader.getDbTime(readerConfig);
+        task.setStartTime(new Date(dbTime.getTime() - TimeUnit.SECONDS.toMillis(properties.getBootstrap().getStartTimeMarginSeconds())));
+        task.setStatus(STATUS_RUNNING);
+
+        long[] range = syncSqlReader.getKeyRange(readerConfig);
+        bootstrapMapper.insertTask(task);
+        List<SyncBootstrapChunk> chunks = new ArrayList<>();
+        if (range != null) {
+            long min = range[0];
+            long max = range[1];
+            for (long rangeStart = min; rangeStart <= max; rangeStart += task.getChunkSize()) {
+                SyncBootstrapChunk chunk = new SyncBootstrapChunk();
+                chunk.setTaskId(task.getId());
+                chunk.setRangeStart(rangeStart);
+                chunk.setRangeEnd(Math.min(rangeStart + task.getChunkSize(), max + 1));
+                chunk.setStatus(STATUS_RUNNING);
+                chunks.add(chunk);
+            }
+            for (List<SyncBootstrapChunk> partition : Lists.partition(chunks, 1000)) {
+                bootstrapMapper.insertChunks(partition);
+            }
+        }
+        log.info("Bootstrap task created, taskId={}, readerConfig id={}, chunks={}, targetIndex={}",
+                task.getId(), readerConfId, chunks.size(), task.getTargetIndex());
+        return task;
+    }
+
+    /**
+     * 继续执行中断或失败的任务，只执行未完成的分片
+     */
+    public void resume(Long taskId) {
+        execute(taskId);
+    }
+
+    /**
+     * 执行任务中未完成的分片
+     * @return 任务结束时完成，全部分片成功时为true；任务已完成时直接返回true
+     */
+    public CompletableFuture<Boolean> execute(Long taskId) {
+        SyncBootstrapTask task = getTask(taskId);
+        if (task.getStatus() == STATUS_DONE) {
+            log.warn("Bootstrap task has been done, taskId={}", taskId);
+            return CompletableFuture.completedFuture(true);
+        }
+        getConfigPair(task.getReaderConfId());
+        bootstrapMapper.updateTaskStatus(taskId, STATUS_RUNNING);
+        return run(task, bootstrapMapper.selectUnfinishedChunks(taskId));
+    }
+
+    public SyncBootstrapTask getTask(Long taskId) {
+        SyncBootstrapTask task = bootstrapMapper.selectTask(taskId);
+        if (task == null) {
+            throw new IllegalArgumentException("Bootstrap task not exists, taskId=" + taskId);
+        }
+        return task;
+    }
+
+    private SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> getConfigPair(Integer readerConfId) {
+        SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair = consumer.getConfigPair(readerConfId);
+        if (pair == null) {
+            throw new IllegalArgumentException("Can not find reader and writer config, readerConfig id=" + readerConfId);
+        }
+        if (pair.getReader().getIsMainTable() != 1 || syncSqlReader.getBatchKeyColumn(pair.getReader()) == null) {
+            throw new IllegalArgumentException("Bootstrap requires main table config with query batch sql, readerConfig id=" + readerConfId);
+        }
+        return pair;
+    }
+
+    private CompletableFuture<Boolean> run(SyncBootstrapTask task, List<SyncBootstrapChunk> chunks) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (runningTasks.putIfAbsent(task.getId(), result) != null) {
+            throw new IllegalStateException("Bootstrap task is running, taskId=" + task.getId());
+        }
+        if (StringUtils.isBlank(task.getTargetIndex())) {
+            // 索引可能已重建，不跳过内容未变的文档
+            syncEsWriter.invalidateHashes(getConfigPair(task.getReaderConfId()).getWriter().getEsIndex());
+        }
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(chunks.size());
+        for (SyncBootstrapChunk chunk : chunks) {
+            futures.add(CompletableFuture.supplyAsync(() -> runChunk(task, chunk), executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+            runningTasks.remove(task.getId());
+            boolean success = e == null && futures.stream().allMatch(CompletableFuture::join);
+            try {
+                finish(task, success);
+                result.complete(success);
+            } catch (Exception finishError) {
+                result.completeExceptionally(finishError);
+            }
+        });
+        return result;
+    }
+
+    private boolean runChunk(SyncBootstrapTask task, SyncBootstrapChunk chunk) {
+        long rows = 0;
+        try {
+            SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair = getConfigPair(task.getReaderConfId());
+            long[] written = new long[1];
+            syncSqlReader.streamKeys(pair.getReader(), chunk.getRangeStart(), chunk.getRangeEnd(), task.getStartTime(),
+                    properties.getBootstrap().getBatchSize(), keys -> written[0] += writeBatch(task, pair, keys));
+            rows = written[0];
+            chunk.setStatus(STATUS_DONE);
+            chunk.setErrorMsg("");
+        } catch (Exception e) {
+            log.error(String.format("Bootstrap chunk failed, taskId=%s, range=[%s, %s)",
+                    task.getId(), chunk.getRangeStart(), chunk.getRangeEnd()), e);
+            chunk.setStatus(STATUS_FAILED);
+            chunk.setErrorMsg(StringUtils.abbreviate(String.valueOf(e), 500));
+        }
+        chunk.setRowCount(rows);
+        bootstrapMapper.updateChunk(chunk);
+        return chunk.getStatus() == STATUS_DONE;
+    }
+
+    private int writeBatch(SyncBootstrapTask task, SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair,
+                           List<Object> keys) throws Exception {
+        List<Map<String, Object>> data = syncSqlReader.getWholeDataByKeys(pair.getReader(), keys, task.getStartTime());
+        if (CollectionUtils.isEmpty(data)) {
+            return 0;
+        }
+        if (StringUtils.isBlank(task.getTargetIndex())) {
+            syncEsWriter.upsert(pair.getWriter(), data);
+        } else {
+            syncEsWriter.bulkLoad(syncEsWriter.forIndex(pair.getWriter(), task.getTargetIndex()), data);
+        }
+        return data.size();
+    }
+
+    /**
+     * 全部分片完成后，把消费位点重置到任务开始时间，交由增量同步
+     */
+    private void finish(SyncBootstrapTask task, boolean success) {
+        if (!success) {
+            bootstrapMapper.updateTaskStatus(task.getId(), STATUS_FAILED);
+            log.error("Bootstrap task failed, resume it to retry failed chunks, taskId={}", task.getId());
+            return;
+        }
+        if (StringUtils.isNotBlank(task.getGroupId())) {
+            if (resetPointService == null) {
+                log.error("No SyncResetPointService found, reset check point manually, taskId={}, groupId={}, startTime={}",
+                        task.getId(), task.getGroupId(), task.getStartTime());
+            } else if (!resetPointService.reset(task.getGroupId(), task.getStartTime().getTime() / 1000)) {
+                log.error("Reset check point failed, taskId={}, groupId={}, startTime={}",
+                        task.getId(), task.getGroupId(), task.getStartTime());
+            }
+        }
+        bootstrapMapper.updateTaskStatus(task.getId(), STATUS_DONE);
+        log.info("Bootstrap task done, taskId={}", task.getId());
+    }
+}
@@ -0,0 +1,203 @@
+package net.scat.sync.consumer.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.config.SyncClientProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按配置把库路由到连接池，连接池可引用已有的JdbcTemplate，也可由配置创建；
+ * 配置了从库时，定时检查从库的复制延迟，事件已在从库应用时读从库，否则读主库，避免读到旧数据
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SyncDataSourceRouter implements ApplicationContextAware {
+    private final SyncClientProperties properties;
+    /**
+     * 库名 -> 连接池
+     */
+    private Map<String, RoutedPool> routes = Collections.emptyMap();
+    private final List<HikariDataSource> createdDataSources = new ArrayList<>();
+    private final ScheduledExecutorService lagChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SyncDataSourceRouter_lag_checker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 获取主库连接
+     */
+    public JdbcTemplate getTemplate(String db) {
+        return getPool(db).primary;
+    }
+
+    /**
+     * 获取可以读到该时间点之后数据的连接，从库已应用到该时间点时返回从库，否则返回主库
+     * @param timestamp 事件时间，为空时返回主库
+     */
+    public JdbcTemplate getTemplate(String db, Date timestamp) {
+        RoutedPool pool = getPool(db);
+        if (pool.replica == null || timestamp == null) {
+            return pool.primary;
+        }
+        if (pool.replica.appliedUntil - properties.getDatasource().getLagMarginMillis() >= timestamp.getTime()) {
+            return pool.replica.template;
+        }
+        return pool.primary;
+    }
+
+    private RoutedPool getPool(String db) {
+        RoutedPool pool = routes.get(db);
+        if (pool == null) {
+            throw new IllegalStateException("No datasource route for db=" + db);
+        }
+        return pool;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+        SyncClientProperties.Datasource datasource = properties.getDatasource();
+        if (datasource.getRoutes().isEmpty()) {
+            log.error("There are`t any datasource route has been set, property=data.sync.client.datasource.routes");
+            return;
+        }
+        Map<String, RoutedPool> pools = new HashMap<>();
+        Map<String, RoutedPool> routes = new HashMap<>();
+        for (Map.Entry<String, String> route : datasource.getRoutes().entrySet()) {
+            String poolName = route.getValue();
+            RoutedPool pool = pools.computeIfAbsent(poolName, name -> createPool(applicationContext, name, datasource.getPools().get(name)));
+            routes.put(route.getKey(), pool);
+        }
+        this.routes = routes;
+        List<Replica> replicas = new ArrayList<>();
+        for (RoutedPool pool : pools.values()) {
+            if (pool.replica != null) {
+                replicas.add(pool.replica);
+            }
+        }
+        if (!replicas.isEmpty()) {
+            lagChecker.scheduleWithFixedDelay(() -> replicas.forEach(this::checkLag), 0,
+                    datasource.getLagCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private RoutedPool createPool(ApplicationContext applicationContext, String name, SyncClientProperties.Pool config) {
+        if (config == null) {
+            return new RoutedPool(getBean(applicationContext, name), null);
+        }
+        JdbcTemplate primary = createTemplate(applicationContext, name, config, false);
+        Replica replica = null;
+        if (config.getReplica() != null) {
+            replica = new Replica(name + "_replica", createTemplate(applicationContext, name + "_replica", config.getReplica(), true));
+        }
+        return new RoutedPool(primary, replica);
+    }
+
+    private JdbcTemplate createTemplate(ApplicationContext applicationContext, String name, SyncClientProperties.Pool config,
+                                        boolean readOnly) {
+        if (StringUtils.isNotBlank(config.getJdbcTemplate())) {
+            return getBean(applicationContext, config.getJdbcTemplate());
+        }
+        if (StringUtils.isBlank(config.getUrl())) {
+            throw new IllegalArgumentException("Datasource url or jdbcTemplate must be set, pool=" + name);
+        }
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName("sync_" + name);
+        hikariConfig.setJdbcUrl(config.getUrl());
+        hikariConfig.setUsername(config.getUsername());
+        hikariConfig.setPassword(config.getPassword());
+        if (StringUtils.isNotBlank(config.getDriverClassName())) {
+            hikariConfig.setDriverClassName(config.getDriverClassName());
+        }
+        hikariConfig.setMaximumPoolSize(config.getMaximumPoolSize());
+        hikariConfig.setReadOnly(readOnly);
+        // 读取sql均为PreparedStatement，开启服务端预编译及缓存，复用执行计划
+        hikariConfig.addDataSourceProperty("useServerPrepStmts", "true");
+        hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+        hikariConfig.addDataSourceProperty("prepStmtCacheSize", "250");
+        hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        HikariDataSource dataSource = new HikariDataSource(hikariConfig);
+        synchronized (createdDataSources) {
+            createdDataSources.add(dataSource);
+        }
+        return new JdbcTemplate(dataSource);
+    }
+
+    private JdbcTemplate getBean(ApplicationContext applicationContext, String name) {
+        if (!applicationContext.containsBean(name)) {
+            throw new IllegalArgumentException("Can not find datasource pool config or jdbcTemplate bean, name=" + name);
+        }
+        return applicationContext.getBean(name, JdbcTemplate.class);
+    }
+
+    /**
+     * 从库已应用到的时间 = 检查开始时间 - 复制延迟；复制中断或检查失败时不读从库。
+     * Seconds_Behind_Master只是估计值：按秒截断，且只反映SQL线程落后于已拉取的relay log的程度，
+     * IO线程拉取落后时仍可能为0，因此需配合lagMarginMillis预留余量，对一致性要求严格的库不应配置从库
+     */
+    private void checkLag(Replica replica) {
+        long checkTime = System.currentTimeMillis();
+        try {
+            List<Map<String, Object>> status = replica.template.queryForList("show slave status");
+            Map<String, Object> slaveStatus = status.isEmpty() ? Collections.emptyMap() : status.get(0);
+            Object lag = slaveStatus.get("Seconds_Behind_Master");
+            if (lag == null || !"Yes".equalsIgnoreCase(String.valueOf(slaveStatus.get("Slave_IO_Running")))
+                    || !"Yes".equalsIgnoreCase(String.valueOf(slaveStatus.get("Slave_SQL_Running")))) {
+                if (replica.appliedUntil > 0) {
+                    log.warn("Replica is not replicating, read from primary instead, replica={}", replica.name);
+                }
+                replica.appliedUntil = 0;
+                return;
+            }
+            replica.appliedUntil = checkTime - Long.parseLong(String.valueOf(lag)) * 1000;
+        } catch (Exception e) {
+            if (replica.appliedUntil > 0) {
+                log.warn("Check replica lag error, read from primary instead, replica=" + replica.name, e);
+            }
+            replica.appliedUntil = 0;
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        lagChecker.shutdownNow();
+        synchronized (createdDataSources) {
+            createdDataSources.forEach(HikariDataSource::close);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class RoutedPool {
+        private final JdbcTemplate primary;
+        private final Replica replica;
+    }
+
+    private static class Replica {
+        private final String name;
+        private final JdbcTemplate template;
+        /**
+         * 从库已应用的主库数据时间，为0时不可读
+         */
+        private volatile long appliedUntil;
+
+        private Replica(String name, JdbcTemplate template) {
+            this.name = name;
+            this.template = template;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.scat.sync.consumer.impl;
 
 import lombok.AllArgsConstructor;
+import net.scat.sync.client.config.SyncClientProperties;
 import net.scat.sync.consumer.base.AbstractSyncConsumer;
 import net.scat.sync.consumer.base.SyncReader;
 import net.scat.sync.consumer.base.SyncWriter;
@@ -18,6 +19,7 @@ public class SyncEsBySqlConsumer extends AbstractSyncConsumer<SyncSqlReaderConfi
     private final SyncSqlReader syncSqlReader;
     private final SyncSqlReaderConfigMapper readerConfigMapper;
     private final SyncEsWriterConfigMapper writerConfigMapper;
+    private final SyncClientProperties properties;
     @Override
     protected SyncReader<SyncSqlReaderConfig> getReader() {
         return syncSqlReader;
@@ -37,4 +39,9 @@ public class SyncEsBySqlConsumer extends AbstractSyncConsumer<SyncSqlReaderConfi
     protected SyncBaseConfigMapper<SyncEsWriterConfig> getWriterConfigMapper() {
         return writerConfigMapper;
     }
+
+    @Override
+    protected SyncClientProperties getProperties() {
+        return properties;
+    }
 }
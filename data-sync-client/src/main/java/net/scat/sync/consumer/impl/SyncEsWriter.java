@@ -1,118 +1,1381 @@
 package net.scat.sync.consumer.impl;
 
-import com.alibaba.fastjson.JSON;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.Hashing;
 import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.config.SyncClientProperties;
 import net.scat.sync.consumer.base.SyncWriter;
+import net.scat.sync.mapper.SyncDeadLetterMapper;
 import net.scat.sync.model.DataChangeEvent;
+import net.scat.sync.model.SyncDeadLetter;
 import net.scat.sync.model.SyncEsWriterConfig;
 import net.scat.sync.utils.DateUtils;
+import net.scat.sync.utils.Futures;
+import net.scat.sync.utils.SyncMetrics;
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.elasticsearch.index.reindex.UpdateByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.springframework.beans.BeanUtils;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.util.Date;
-import java.util.List;
-import java.util.Map;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Component
 @Slf4j
-@AllArgsConstructor
 public class SyncEsWriter implements SyncWriter<SyncEsWriterConfig> {
     private final RestHighLevelClient esClient;
+    private static final Set<RestStatus> RETRYABLE_STATUSES = EnumSet.of(RestStatus.TOO_MANY_REQUESTS,
+            RestStatus.SERVICE_UNAVAILABLE, RestStatus.CONFLICT);
+    private static final Pattern SCRIPT_PARAM = Pattern.compile("%([A-Za-z_]\\w*)%");
+    private final SyncClientProperties properties;
+    private final SyncDeadLetterMapper deadLetterMapper;
+    private final ConcurrentHashMap<PendingUpdateKey, PendingUpdate> pendingUpdates = new ConcurrentHashMap<>();
+    private final Set<PendingUpdateKey> inFlightUpdates = ConcurrentHashMap.newKeySet();
+    /**
+     * 索引/类型/外键字段 -> 待发送的按外键删除
+     */
+    private final ConcurrentHashMap<String, PendingDelete> pendingDeletes = new ConcurrentHashMap<>();
+    /**
+     * 索引/外键字段/外键值 -> 该外键最近一次提交的从表文档写入或删除
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> foreignKeyWrites = new ConcurrentHashMap<>();
+    private final Semaphore updatePermits;
+    private final ScheduledExecutorService updateFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SyncEsWriter_update_flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 批量处理器中未完成的写入请求 -> 对应的提交，按请求对象本身匹配
+     */
+    private final Map<DocWriteRequest<?>, BulkItem> bulkItems = new MapMaker().weakKeys().makeMap();
+    /**
+     * 文档（索引/id） -> 最近一次提交的写入
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> documentWrites = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService bulkRetryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SyncEsWriter_bulk_retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * 集群并发达到上限时，等待许可后发送批量请求，不在批量处理器的锁内等待
+     */
+    private final ExecutorService bulkSender = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SyncEsWriter_bulk_sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private BulkProcessor bulkProcessor;
+    /**
+     * 重建索引时导入新索引使用的批量处理器，与增量写入分开，批次更大、并发更高
+     */
+    private BulkProcessor bulkLoadProcessor;
+    /**
+     * 配置的索引（别名） -> 重建中的新索引，重建期间增量写入同时写入新索引
+     */
+    private final ConcurrentHashMap<String, String> rebuildIndexes = new ConcurrentHashMap<>();
+    /**
+     * 配置 -> 写入其他索引的配置副本
+     */
+    private final ConcurrentMap<SyncEsWriterConfig, SyncEsWriterConfig> indexConfigs = new MapMaker().weakKeys().makeMap();
+    private final SyncJsonSerializer jsonSerializer = new SyncJsonSerializer();
+    /**
+     * 配置 -> 参数化后的更新脚本
+     */
+    private final ConcurrentMap<SyncEsWriterConfig, String> preparedScripts = new MapMaker().weakKeys().makeMap();
+    private final ConcurrentHashMap<String, BulkStats> bulkStats = new ConcurrentHashMap<>();
+    /**
+     * (索引, 代次, 文档id) -> 最近一次成功写入内容的hash，未开启时为null
+     */
+    private final Cache<DocHashKey, Long> hashCache;
+    /**
+     * (索引, 代次, 文档id) -> 已提交、未结束的写入，写入成功后才记录hash，有未结束的写入时不跳过
+     */
+    private final ConcurrentHashMap<DocHashKey, HashWrites> hashWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> indexGenerations = new ConcurrentHashMap<>();
+    /**
+     * 集群同时发送的批量请求数的自适应上限
+     */
+    private final AdaptiveLimiter clusterLimiter;
+    /**
+     * 索引 -> 未完成写入的文档数的自适应上限
+     */
+    private final ConcurrentHashMap<String, AdaptiveLimiter> indexLimiters = new ConcurrentHashMap<>();
+
+    public SyncEsWriter(RestHighLevelClient esClient, SyncClientProperties properties, SyncDeadLetterMapper deadLetterMapper) {
+        this.esClient = esClient;
+        this.properties = properties;
+        this.deadLetterMapper = deadLetterMapper;
+        long hashCacheSize = properties.getWriter().getHashCacheSize();
+        this.hashCache = hashCacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(hashCacheSize).recordStats().build() : null;
+        this.updatePermits = new Semaphore(properties.getWriter().getMaxConcurrentUpdates());
+        SyncClientProperties.Limiter limiter = properties.getLimiter();
+        this.clusterLimiter = new AdaptiveLimiter("cluster", limiter.getMinClusterRequests(),
+                properties.getWriter().getBulkConcurrentRequests() + properties.getRebuild().getBulkConcurrentRequests(),
+                1, limiter.getBackoffRatio());
+        SyncMetrics.gauge("es.cluster.limit", clusterLimiter, AdaptiveLimiter::getLimit);
+        SyncMetrics.gauge("es.cluster.inflight.bulks", clusterLimiter, AdaptiveLimiter::getInFlight);
+        SyncMetrics.gauge("es.inflight.documents", bulkItems, Map::size);
+        SyncMetrics.gauge("es.pending.updates", pendingUpdates, Map::size);
+        SyncMetrics.gauge("es.pending.deletes", pendingDeletes, Map::size);
+        if (hashCache != null) {
+            SyncMetrics.counter("es.hash.cache.hits", hashCache, cache -> cache.stats().hitCount());
+            SyncMetrics.counter("es.hash.cache.misses", hashCache, cache -> cache.stats().missCount());
+        }
+    }
 
     @Override
     public void upsert(SyncEsWriterConfig config, List<Map<String, Object>> data) throws Exception {
-        BulkRequest bulk = new BulkRequest();
-        for (Map<String, Object> datum : data) {
-            String id = getId(config.getEsIdPrefix(), String.valueOf(datum.get(config.getEsIdName())));
+        Futures.await(upsertAsync(config, data));
+    }
+
+    /**
+     * 写入请求加入批量处理器，与其他事件的写入合并发送，全部写入成功时future完成；
+     * 开启内容hash缓存时，跳过内容与上次成功写入相同、且没有未结束写入的文档，未命中时由es的detect_noop判断
+     */
+    @Override
+    public CompletableFuture<Void> upsertAsync(SyncEsWriterConfig config, List<Map<String, Object>> data) throws Exception {
+        List<byte[]> sources = jsonSerializer.serialize(config, data);
+        CompletableFuture<Void> future = upsertToIndex(config, data, sources, null);
+        SyncEsWriterConfig rebuildConfig = getRebuildConfig(config);
+        return rebuildConfig == null ? future : CompletableFuture.allOf(future, upsertToIndex(rebuildConfig, data, sources, null));
+    }
+
+    /**
+     * @param heldDocKey 写入顺序已由调用方占用的文档，该文档的写入不再等待之前的写入
+     */
+    private CompletableFuture<Void> upsertToIndex(SyncEsWriterConfig config, List<Map<String, Object>> data, List<byte[]> sources,
+                                                  String heldDocKey) {
+        List<DocWriteRequest<?>> requests = new ArrayList<>(data.size());
+        List<DocHashKey> hashKeys = hashCache == null ? null : new ArrayList<>(data.size());
+        List<Long> hashes = hashCache == null ? null : new ArrayList<>(data.size());
+        // 从表文档按外键与按外键删除保持顺序
+        boolean orderByForeignKey = config.getIsMainTable() != 1 && StringUtils.isNotBlank(config.getEsForeignKeyName());
+        List<String> foreignKeys = orderByForeignKey ? new ArrayList<>(data.size()) : null;
+        long generation = hashCache == null ? 0 : getGeneration(config.getEsIndex()).get();
+        for (int i = 0; i < data.size(); i++) {
+            String id = getDocumentId(config, data.get(i));
+            if (hashCache != null) {
+                long hash = Hashing.murmur3_128().hashBytes(sources.get(i)).asLong();
+                DocHashKey hashKey = new DocHashKey(config.getEsIndex(), generation, id);
+                if (!registerHashWrite(hashKey, hash)) {
+                    getStats(config.getEsIndex()).skipped.increment();
+                    continue;
+                }
+                hashKeys.add(hashKey);
+                hashes.add(hash);
+            }
             UpdateRequest request = new UpdateRequest(config.getEsIndex(), config.getEsType(), id)
-                    .doc(buildSource(datum)).docAsUpsert(true)
+                    .doc(sources.get(i), XContentType.JSON).docAsUpsert(true).detectNoop(true)
                     .retryOnConflict(5);
             if (StringUtils.isNotBlank(config.getEsRouting())) {
                 request.routing(config.getEsRouting());
             }
-            bulk.add(request);
+            requests.add(request);
+            if (orderByForeignKey) {
+                Object foreignKeyValue = data.get(i).get(config.getEsForeignKeyName());
+                foreignKeys.add(foreignKeyValue == null ? null : getForeignKey(config, toEsValue(foreignKeyValue)));
+            }
         }
-        BulkResponse response = esClient.bulk(bulk, RequestOptions.DEFAULT);
-        log.info("Upsert es result: " + JSON.toJSONString(response));
+        return submit(requests, bulkProcessor, hashKeys, hashes, foreignKeys, heldDocKey);
+    }
+
+    /**
+     * 重建索引时导入新索引：经独立的批量处理器发送；只创建不存在的文档，
+     * 已由增量同步写入的文档以增量为准，不被导入时读取的旧数据覆盖
+     */
+    public void bulkLoad(SyncEsWriterConfig config, List<Map<String, Object>> data) throws Exception {
+        List<byte[]> sources = jsonSerializer.serialize(config, data);
+        List<DocWriteRequest<?>> requests = new ArrayList<>(data.size());
+        for (int i = 0; i < data.size(); i++) {
+            IndexRequest request = new IndexRequest(config.getEsIndex(), config.getEsType(), getDocumentId(config, data.get(i)))
+                    .source(sources.get(i), XContentType.JSON)
+                    .create(true);
+            if (StringUtils.isNotBlank(config.getEsRouting())) {
+                request.routing(config.getEsRouting());
+            }
+            requests.add(request);
+        }
+        Futures.await(submit(requests, bulkLoadProcessor, null, null, null, null));
+    }
+
+    /**
+     * 开始双写：写入该索引（别名）的增量同时写入重建中的新索引
+     */
+    public void startDualWrite(String alias, String index) {
+        rebuildIndexes.put(alias, index);
+        log.info("Start dual write, alias={}, index={}", alias, index);
+    }
+
+    public void stopDualWrite(String alias) {
+        String index = rebuildIndexes.remove(alias);
+        log.info("Stop dual write, alias={}, index={}", alias, index);
+    }
+
+    /**
+     * 双写中的索引：别名 -> 新索引
+     */
+    public Map<String, String> getDualWrites() {
+        return Collections.unmodifiableMap(rebuildIndexes);
+    }
+
+    /**
+     * 写入指定索引的配置副本，其他设置与原配置相同；副本按原配置缓存，配置重新加载后随之重新生成
+     */
+    public SyncEsWriterConfig forIndex(SyncEsWriterConfig config, String index) {
+        SyncEsWriterConfig copy = indexConfigs.get(config);
+        if (copy == null || !index.equals(copy.getEsIndex())) {
+            copy = new SyncEsWriterConfig();
+            BeanUtils.copyProperties(config, copy);
+            copy.setEsIndex(index);
+            indexConfigs.put(config, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * 配置的索引正在重建时，写入新索引的配置；新索引导入期间不刷新，按查询更新、删除只作用于已刷新的文档，
+     * 遗漏的变更由重建完成后重置消费位点补上
+     */
+    private SyncEsWriterConfig getRebuildConfig(SyncEsWriterConfig config) {
+        String index = rebuildIndexes.get(config.getEsIndex());
+        return index == null ? null : forIndex(config, index);
+    }
+
+    /**
+     * 主表配置了主键在表中的名称时，可由事件定位文档
+     */
+    @Override
+    public boolean supportPartialUpdate(SyncEsWriterConfig config) {
+        return config.getIsMainTable() == 1 && StringUtils.isNotBlank(config.getIdOriginName());
+    }
+
+    /**
+     * 只更新变更的字段，同样经批量处理器发送；文档不存在（尚未写入或之前的写入失败）时读取整条数据写入
+     */
+    @Override
+    public CompletableFuture<Void> partialUpdateAsync(SyncEsWriterConfig config, DataChangeEvent event, Map<String, Object> doc,
+                                                      Callable<List<Map<String, Object>>> wholeData, Executor executor) throws Exception {
+        Object idValue = tryGetValueFromEvent(config.getIdOriginName(), event);
+        if (idValue == null) {
+            List<Map<String, Object>> data = wholeData.call();
+            return CollectionUtils.isEmpty(data) ? Futures.done() : upsertAsync(config, data);
+        }
+        String id = getId(config.getEsIdPrefix(), String.valueOf(idValue));
+        byte[] source = jsonSerializer.serialize(config, Collections.singletonList(doc)).get(0);
+        CompletableFuture<Void> future = partialUpdateToIndex(config, id, source, wholeData, executor);
+        SyncEsWriterConfig rebuildConfig = getRebuildConfig(config);
+        // 新索引中尚未导入的文档同样整条写入
+        return rebuildConfig == null ? future : CompletableFuture.allOf(future, partialUpdateToIndex(rebuildConfig, id, source, wholeData, executor));
+    }
+
+    /**
+     * 局部更新登记为文档最近一次写入的是hold，文档不存在时整条写入完成后才完成，
+     * 同一文档之后的写入（如删除）不会先于整条写入执行；整条写入在executor中读取数据，不占用批量请求的回调线程
+     */
+    private CompletableFuture<Void> partialUpdateToIndex(SyncEsWriterConfig config, String id, byte[] source,
+                                                         Callable<List<Map<String, Object>>> wholeData, Executor executor) {
+        UpdateRequest request = new UpdateRequest(config.getEsIndex(), config.getEsType(), id)
+                .doc(source, XContentType.JSON)
+                .detectNoop(true)
+                .retryOnConflict(5);
+        if (StringUtils.isNotBlank(config.getEsRouting())) {
+            request.routing(config.getEsRouting());
+        }
+        // 缓存的是整条文档的hash，局部更新后不再可比
+        invalidateHash(request.index(), id);
+        BulkCompletion completion = new BulkCompletion(1);
+        BulkItem item = new BulkItem(completion, bulkProcessor, null, 0, null);
+        recordWrite(completion, request);
+        CompletableFuture<Void> hold = new CompletableFuture<>();
+        acquireIndex(request.index(), item);
+        submitItem(request, item, hold);
+        completion.future.whenComplete((v, e) -> {
+            if (e != null) {
+                hold.completeExceptionally(e);
+            } else if (!completion.documentMissing) {
+                hold.complete(null);
+            } else {
+                try {
+                    executor.execute(() -> upsertMissing(config, wholeData, getDocKey(request)).whenComplete((v2, e2) -> {
+                        if (e2 != null) {
+                            hold.completeExceptionally(e2);
+                        } else {
+                            hold.complete(null);
+                        }
+                    }));
+                } catch (RejectedExecutionException rejected) {
+                    hold.completeExceptionally(rejected);
+                }
+            }
+        });
+        return hold;
+    }
+
+    private CompletableFuture<Void> upsertMissing(SyncEsWriterConfig config, Callable<List<Map<String, Object>>> wholeData,
+                                                  String heldDocKey) {
+        try {
+            List<Map<String, Object>> data = wholeData.call();
+            if (CollectionUtils.isEmpty(data)) {
+                return Futures.done();
+            }
+            return upsertToIndex(config, data, jsonSerializer.serialize(config, data), heldDocKey);
+        } catch (Exception e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * @param hashKeys 各请求对应的内容hash缓存key，已登记为未结束的写入；为空时不使用缓存
+     * @param hashes 各请求的内容hash，写入成功时记录到缓存
+     * @param foreignKeys 各请求对应的外键，与按外键删除保持顺序；为空时不需要
+     */
+    private CompletableFuture<Void> submit(List<DocWriteRequest<?>> requests, BulkProcessor processor,
+                                           List<DocHashKey> hashKeys, List<Long> hashes, List<String> foreignKeys,
+                                           String heldDocKey) {
+        if (requests.isEmpty()) {
+            return Futures.done();
+        }
+        BulkCompletion completion = new BulkCompletion(requests.size());
+        recordWrite(completion, requests.get(0));
+        for (int i = 0; i < requests.size(); i++) {
+            BulkItem item = new BulkItem(completion, processor, hashKeys == null ? null : hashKeys.get(i),
+                    hashes == null ? 0 : hashes.get(i), foreignKeys == null ? null : foreignKeys.get(i));
+            acquireIndex(requests.get(i).index(), item);
+            submitItem(requests.get(i), item, getDocKey(requests.get(i)).equals(heldDocKey) ? null : item.done);
+        }
+        return completion.future;
+    }
+
+    /**
+     * 统计一次提交从提交到全部写入完成的耗时，包括排队、限流等待及重试，按索引及操作类型区分
+     */
+    private void recordWrite(BulkCompletion completion, DocWriteRequest<?> request) {
+        long startNanos = System.nanoTime();
+        String index = request.index();
+        String op = request.opType().getLowercase();
+        completion.future.whenComplete((v, e) -> SyncMetrics.recordSince(startNanos, "es.write", "index", index, "op", op));
+    }
+
+    /**
+     * 索引未完成写入的文档数达到上限时阻塞等待，写入结束（成功或最终失败）时释放
+     */
+    private void acquireIndex(String index, BulkItem item) {
+        if (!properties.getLimiter().isEnabled()) {
+            return;
+        }
+        AdaptiveLimiter limiter = getIndexLimiter(index);
+        // 等待被中断时（关闭中）不再限制
+        if (limiter.acquire()) {
+            item.done.whenComplete((v, e) -> limiter.release());
+        }
+    }
+
+    private AdaptiveLimiter getIndexLimiter(String index) {
+        return indexLimiters.computeIfAbsent(index, k -> {
+            SyncClientProperties.Limiter limiter = properties.getLimiter();
+            AdaptiveLimiter indexLimiter = new AdaptiveLimiter(k, limiter.getMinIndexDocs(), limiter.getMaxIndexDocs(),
+                    limiter.getMinIndexDocs(), limiter.getBackoffRatio());
+            SyncMetrics.gauge("es.index.limit", indexLimiter, AdaptiveLimiter::getLimit, "index", k);
+            SyncMetrics.gauge("es.index.inflight.documents", indexLimiter, AdaptiveLimiter::getInFlight, "index", k);
+            return indexLimiter;
+        });
+    }
+
+    /**
+     * 按集群的自适应上限发送批量请求；批量处理器持有锁调用此方法，达到上限时不在此等待，
+     * 交由发送线程等待许可后发送，其他线程的add不受影响。等待中的请求仍占用批量处理器的并发数，
+     * 并发数用完后add才阻塞，等待的请求数不超过批量处理器的并发数，写入方随之降速；
+     * 按请求耗时及被拒绝的文档调整集群及所含各索引的上限
+     */
+    private void sendBulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+        boolean limited = properties.getLimiter().isEnabled();
+        if (!limited || clusterLimiter.tryAcquire()) {
+            sendBulk(request, listener, limited, limited);
+            return;
+        }
+        try {
+            // 等待被中断时（关闭中）不再限制
+            bulkSender.execute(() -> sendBulk(request, listener, true, clusterLimiter.acquire()));
+        } catch (RejectedExecutionException e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private void sendBulk(BulkRequest request, ActionListener<BulkResponse> listener, boolean limited, boolean acquired) {
+        long startNanos = System.nanoTime();
+        bulkAsync(request, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                SyncMetrics.recordSince(startNanos, "es.bulk", "result", response.hasFailures() ? "partial_failure" : "success");
+                try {
+                    if (limited) {
+                        onBulkSample(request, response, startNanos);
+                    }
+                } catch (Exception e) {
+                    log.warn("Adjust es write limit error", e);
+                } finally {
+                    if (acquired) {
+                        clusterLimiter.release();
+                    }
+                }
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                SyncMetrics.recordSince(startNanos, "es.bulk", "result", "failure");
+                if (limited) {
+                    clusterLimiter.onSample(startNanos, true);
+                }
+                if (acquired) {
+                    clusterLimiter.release();
+                }
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * 发送批量请求到es，结果在es客户端的io线程回调
+     */
+    void bulkAsync(BulkRequest request, ActionListener<BulkResponse> listener) {
+        esClient.bulkAsync(request, RequestOptions.DEFAULT, listener);
+    }
+
+    private void onBulkSample(BulkRequest request, BulkResponse response, long startNanos) {
+        boolean slow = System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(properties.getLimiter().getLatencyThresholdMillis());
+        boolean rejected = false;
+        // 按请求中的索引名（可能是别名）统计，与写入时的上限对应
+        Map<String, Boolean> overloadedIndexes = new HashMap<>();
+        List<DocWriteRequest<?>> requests = request.requests();
+        BulkItemResponse[] responses = response.getItems();
+        for (int i = 0; i < requests.size(); i++) {
+            boolean itemRejected = responses[i].isFailed() && responses[i].getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS;
+            rejected |= itemRejected;
+            overloadedIndexes.merge(requests.get(i).index(), slow || itemRejected, Boolean::logicalOr);
+        }
+        clusterLimiter.onSample(startNanos, slow || rejected);
+        overloadedIndexes.forEach((index, overloaded) -> getIndexLimiter(index).onSample(startNanos, overloaded));
+    }
+
+    /**
+     * 集群批量请求数的自适应上限
+     */
+    public AdaptiveLimiter getClusterLimiter() {
+        return clusterLimiter;
+    }
+
+    /**
+     * 各索引未完成写入文档数的自适应上限
+     */
+    public Map<String, AdaptiveLimiter> getIndexLimiters() {
+        return Collections.unmodifiableMap(indexLimiters);
+    }
+
+    private AtomicLong getGeneration(String index) {
+        return indexGenerations.computeIfAbsent(index, k -> new AtomicLong());
+    }
+
+    /**
+     * 文档被按查询更新或删除，或需要强制重写（修复、重建）时，使该索引的内容hash缓存全部失效
+     */
+    public void invalidateHashes(String index) {
+        if (hashCache != null) {
+            getGeneration(index).incrementAndGet();
+        }
+    }
+
+    private void invalidateHash(String index, String id) {
+        if (hashCache != null) {
+            hashWrites.compute(new DocHashKey(index, getGeneration(index).get(), id), (k, writes) -> {
+                hashCache.invalidate(k);
+                // 之前提交、尚未结束的写入成功时也不再记录hash
+                if (writes != null) {
+                    writes.invalidated = true;
+                }
+                return writes;
+            });
+        }
+    }
+
+    /**
+     * 文档没有未结束的写入、且内容与上次成功写入的相同时返回false，跳过写入；否则登记一次未结束的写入。
+     * 有未结束的写入时不跳过，之前的写入可能失败，或与本次内容不同
+     */
+    private boolean registerHashWrite(DocHashKey hashKey, long hash) {
+        boolean[] skip = new boolean[1];
+        hashWrites.compute(hashKey, (k, writes) -> {
+            if (writes == null) {
+                Long lastHash = hashCache.getIfPresent(k);
+                if (lastHash != null && lastHash == hash) {
+                    skip[0] = true;
+                    return null;
+                }
+                writes = new HashWrites();
+            }
+            writes.count++;
+            return writes;
+        });
+        return !skip[0];
+    }
+
+    /**
+     * 写入结束时注销：成功时记录内容hash，同一文档的写入按提交顺序结束，最后记录的为最近一次写入的内容；
+     * 失败（记录到失败表）或期间文档被删除、局部更新时清除
+     */
+    private void completeHashWrite(BulkItem item, boolean succeeded) {
+        if (item.hashKey == null) {
+            return;
+        }
+        hashWrites.compute(item.hashKey, (k, writes) -> {
+            if (succeeded && (writes == null || !writes.invalidated)) {
+                hashCache.put(k, item.hash);
+            } else {
+                hashCache.invalidate(k);
+            }
+            if (writes == null || --writes.count <= 0) {
+                return null;
+            }
+            return writes;
+        });
+    }
+
+    /**
+     * 内容hash缓存的命中统计，未开启时返回null
+     */
+    public CacheStats getHashCacheStats() {
+        return hashCache == null ? null : hashCache.stats();
+    }
+
+    private static String getDocKey(DocWriteRequest<?> request) {
+        return request.index() + "/" + request.id();
+    }
+
+    /**
+     * 同一文档的上一次写入未完成时，等其完成后再加入，保证同一文档的写入按提交顺序执行；
+     * 从表文档同时等待同一外键之前提交的写入及删除
+     * @param order 登记为文档最近一次写入的future，之后的写入等待它完成；为空时写入顺序已由调用方占用，不等待也不登记
+     */
+    private void submitItem(DocWriteRequest<?> request, BulkItem item, CompletableFuture<Void> order) {
+        CompletableFuture<Void> previous = null;
+        if (order != null) {
+            String docKey = getDocKey(request);
+            previous = documentWrites.put(docKey, order);
+            order.whenComplete((v, e) -> documentWrites.remove(docKey, order));
+        }
+        if (item.foreignKey != null) {
+            CompletableFuture<Void> previousOfKey = foreignKeyWrites.put(item.foreignKey, item.done);
+            item.done.whenComplete((v, e) -> foreignKeyWrites.remove(item.foreignKey, item.done));
+            if (previousOfKey != null && !previousOfKey.isDone()) {
+                closeDelete(previousOfKey);
+                previous = previous == null || previous.isDone() ? previousOfKey : CompletableFuture.allOf(previous, previousOfKey);
+            }
+        }
+        if (previous == null || previous.isDone()) {
+            addToBulk(request, item);
+        } else {
+            previous.whenCompleteAsync((v, e) -> addToBulk(request, item), bulkRetryScheduler);
+        }
+    }
+
+    private void addToBulk(DocWriteRequest<?> request, BulkItem item) {
+        bulkItems.put(request, item);
+        try {
+            item.processor.add(request);
+        } catch (Exception e) {
+            // 处理器已关闭
+            bulkItems.remove(request);
+            deadLetter(request, item, null, e);
+        }
+    }
+
+    /**
+     * 按位置把批量结果对应到各写入请求：成功的计数完成；可重试的失败只重新加入失败的文档，
+     * 不可重试或超过重试次数的记录到失败表，不影响同批的其他文档
+     */
+    private class BulkItemListener implements BulkProcessor.Listener {
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            List<DocWriteRequest<?>> requests = request.requests();
+            BulkItemResponse[] responses = response.getItems();
+            int failures = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                BulkItem item = bulkItems.remove(requests.get(i));
+                if (item == null) {
+                    continue;
+                }
+                BulkItemResponse itemResponse = responses[i];
+                if (!itemResponse.isFailed()) {
+                    getStats(itemResponse.getIndex()).succeeded.increment();
+                    completeHashWrite(item, true);
+                    item.complete();
+                    continue;
+                }
+                BulkItemResponse.Failure failure = itemResponse.getFailure();
+                if (failure.getStatus() == RestStatus.CONFLICT && requests.get(i).opType() == DocWriteRequest.OpType.CREATE) {
+                    // 导入的文档已由增量同步写入
+                    getStats(itemResponse.getIndex()).skipped.increment();
+                    item.complete();
+                    continue;
+                }
+                if (failure.getStatus() == RestStatus.NOT_FOUND && isPartialUpdate(requests.get(i))) {
+                    item.completion.documentMissing = true;
+                    item.complete();
+                    continue;
+                }
+                failures++;
+                retryOrDeadLetter(requests.get(i), item, failure.getStatus(), failure.getCause());
+            }
+            log.info("Bulk es result: executionId={}, actions={}, failures={}, took={}",
+                    executionId, requests.size(), failures, response.getTook());
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            log.warn(String.format("Bulk es error, executionId=%s, actions=%s", executionId, request.numberOfActions()), failure);
+            for (DocWriteRequest<?> docRequest : request.requests()) {
+                BulkItem item = bulkItems.remove(docRequest);
+                if (item != null) {
+                    retryOrDeadLetter(docRequest, item, null, failure);
+                }
+            }
+        }
+    }
+
+    private boolean isPartialUpdate(DocWriteRequest<?> request) {
+        return request instanceof UpdateRequest && !((UpdateRequest) request).docAsUpsert();
+    }
+
+    /**
+     * 被拒绝（429）、不可用（503）、版本冲突（409）及请求整体失败（status为空）时重试，其他失败记录到失败表；
+     * 回调在es客户端的io线程执行，重新加入及记录失败可能阻塞，交由重试线程执行
+     */
+    private void retryOrDeadLetter(DocWriteRequest<?> request, BulkItem item, RestStatus status, Throwable cause) {
+        SyncClientProperties.Writer writer = properties.getWriter();
+        boolean retryable = status == null || RETRYABLE_STATUSES.contains(status);
+        if (!retryable || item.attempts >= writer.getBulkRetryTimes()) {
+            bulkRetryScheduler.execute(() -> deadLetter(request, item, status, cause));
+            return;
+        }
+        getStats(request.index()).retried.increment();
+        // 间隔指数增长，实际取其一半到全部之间的随机值，避免同时被拒绝的文档同时重试
+        long delay = writer.getBulkBackoffMillis() << Math.min(item.attempts, 16);
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        item.attempts++;
+        bulkRetryScheduler.schedule(() -> addToBulk(request, item), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录到失败表后视为已处理，同批的其他文档及调用方不受影响；记录失败时调用方的future失败
+     */
+    private void deadLetter(DocWriteRequest<?> request, BulkItem item, RestStatus status, Throwable cause) {
+        log.error(String.format("Write es document failed, index=%s, id=%s, status=%s, attempts=%s",
+                request.index(), request.id(), status, item.attempts), cause);
+        BulkStats stats = getStats(request.index());
+        completeHashWrite(item, false);
+        try {
+            deadLetterMapper.insert(buildDeadLetter(request, item, status, cause));
+            stats.deadLettered.increment();
+            item.complete();
+        } catch (Exception e) {
+            log.error(String.format("Save dead letter error, index=%s, id=%s", request.index(), request.id()), e);
+            stats.failed.increment();
+            e.addSuppressed(cause);
+            item.fail(e);
+        }
+    }
+
+    private SyncDeadLetter buildDeadLetter(DocWriteRequest<?> request, BulkItem item, RestStatus status, Throwable cause) {
+        SyncDeadLetter deadLetter = new SyncDeadLetter();
+        deadLetter.setEsIndex(request.index());
+        deadLetter.setDocId(request.id());
+        deadLetter.setRouting(StringUtils.defaultString(request.routing()));
+        deadLetter.setOpType(request.opType().getLowercase());
+        if (request instanceof UpdateRequest && ((UpdateRequest) request).doc() != null) {
+            deadLetter.setSource(((UpdateRequest) request).doc().source().utf8ToString());
+        } else if (request instanceof IndexRequest) {
+            deadLetter.setSource(((IndexRequest) request).source().utf8ToString());
+        }
+        deadLetter.setStatus(status == null ? 0 : status.getStatus());
+        deadLetter.setAttempts(item.attempts);
+        deadLetter.setErrorMsg(StringUtils.abbreviate(String.valueOf(cause), 1000));
+        return deadLetter;
+    }
+
+    private BulkStats getStats(String index) {
+        return bulkStats.computeIfAbsent(index, k -> {
+            BulkStats stats = new BulkStats();
+            SyncMetrics.counter("es.documents", stats.succeeded, LongAdder::sum, "index", k, "result", "succeeded");
+            SyncMetrics.counter("es.documents", stats.skipped, LongAdder::sum, "index", k, "result", "skipped");
+            SyncMetrics.counter("es.documents", stats.retried, LongAdder::sum, "index", k, "result", "retried");
+            SyncMetrics.counter("es.documents", stats.deadLettered, LongAdder::sum, "index", k, "result", "dead_lettered");
+            SyncMetrics.counter("es.documents", stats.failed, LongAdder::sum, "index", k, "result", "failed");
+            return stats;
+        });
+    }
+
+    /**
+     * 各索引的文档写入计数
+     */
+    public Map<String, BulkStats> getBulkStats() {
+        return Collections.unmodifiableMap(bulkStats);
+    }
+
+    /**
+     * 单个索引的写入计数：成功、内容未变跳过、重试、记录到失败表、记录失败表也失败的文档数
+     */
+    @Getter
+    public static class BulkStats {
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder retried = new LongAdder();
+        private final LongAdder deadLettered = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+
+        @Override
+        public String toString() {
+            return String.format("succeeded=%s, skipped=%s, retried=%s, deadLettered=%s, failed=%s",
+                    succeeded, skipped, retried, deadLettered, failed);
+        }
+    }
+
+    /**
+     * 一次提交的所有写入请求，全部完成（写入成功或记录到失败表）时完成，任一失败时失败
+     */
+    private static class BulkCompletion {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final AtomicInteger remaining;
+        /**
+         * 局部更新的文档不存在
+         */
+        private volatile boolean documentMissing;
+
+        private BulkCompletion(int size) {
+            this.remaining = new AtomicInteger(size);
+        }
+    }
+
+    private static class BulkItem {
+        private final BulkCompletion completion;
+        /**
+         * 写入及重试时加入的批量处理器
+         */
+        private final BulkProcessor processor;
+        /**
+         * 本次写入结束（成功或最终失败）时完成，同一文档的下一次写入等待它
+         */
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final DocHashKey hashKey;
+        private final long hash;
+        private final String foreignKey;
+        private int attempts;
+
+        private BulkItem(BulkCompletion completion, BulkProcessor processor, DocHashKey hashKey, long hash, String foreignKey) {
+            this.completion = completion;
+            this.processor = processor;
+            this.hashKey = hashKey;
+            this.hash = hash;
+            this.foreignKey = foreignKey;
+        }
+
+        private void complete() {
+            done.complete(null);
+            if (completion.remaining.decrementAndGet() == 0) {
+                completion.future.complete(null);
+            }
+        }
+
+        private void fail(Throwable cause) {
+            done.complete(null);
+            completion.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 从表局部更新先缓冲，按配置（索引）+ 外键值合并为最新的值，定时批量发送，
+     * 避免同一外键短时间内的多次变更重复执行update by query及刷新索引
+     */
+    @Override
+    public void update(SyncEsWriterConfig config, Map<String, Object> updateData) {
+        updateAsync(config, updateData);
     }
 
+    /**
+     * 缓冲的更新合并后发送完成时，合并进来的各次更新的future一起完成；重试耗尽时异常完成
+     */
     @Override
-    public void update(SyncEsWriterConfig config, Map<String, Object> updateData) throws IOException {
+    public CompletableFuture<Void> updateAsync(SyncEsWriterConfig config, Map<String, Object> updateData) {
         Object foreignKeyValue = updateData.get(config.getEsForeignKeyName());
         if (foreignKeyValue == null) {
             log.warn("Foreign key value can not be null, foreign key name={}, updateData={}",
                     config.getEsForeignKeyName(), updateData);
-            return;
+            return Futures.done();
+        }
+        CompletableFuture<Void> future = bufferUpdate(config, foreignKeyValue, updateData);
+        SyncEsWriterConfig rebuildConfig = getRebuildConfig(config);
+        if (rebuildConfig != null) {
+            future = CompletableFuture.allOf(future, bufferUpdate(rebuildConfig, foreignKeyValue, updateData));
+        }
+        if (pendingUpdates.size() >= properties.getWriter().getMaxBufferedUpdates()) {
+            updateFlusher.execute(this::flushUpdates);
+        }
+        return future;
+    }
+
+    private CompletableFuture<Void> bufferUpdate(SyncEsWriterConfig config, Object foreignKeyValue, Map<String, Object> updateData) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        pendingUpdates.merge(new PendingUpdateKey(config.getId(), config.getEsIndex(), foreignKeyValue),
+                new PendingUpdate(config, updateData, 0, Collections.singletonList(future)), PendingUpdate::merge);
+        return future;
+    }
+
+    @PostConstruct
+    public void init() {
+        SyncClientProperties.Writer writer = properties.getWriter();
+        long interval = writer.getUpdateFlushIntervalMillis();
+        updateFlusher.scheduleWithFixedDelay(() -> {
+            flushDeletes();
+            flushUpdates();
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        bulkProcessor = buildBulkProcessor(writer.getBulkActions(), writer.getBulkSizeBytes(),
+                writer.getBulkFlushIntervalMillis(), writer.getBulkConcurrentRequests());
+        SyncClientProperties.Rebuild rebuild = properties.getRebuild();
+        bulkLoadProcessor = buildBulkProcessor(rebuild.getBulkActions(), rebuild.getBulkSizeBytes(),
+                rebuild.getBulkFlushIntervalMillis(), rebuild.getBulkConcurrentRequests());
+    }
+
+    private BulkProcessor buildBulkProcessor(int actions, long sizeBytes, long flushIntervalMillis, int concurrentRequests) {
+        // 不使用处理器自带的重试，它会改变结果与请求的对应关系，由监听器按条重试
+        return BulkProcessor.builder(this::sendBulk, new BulkItemListener())
+                .setBulkActions(actions)
+                .setBulkSize(new ByteSizeValue(sizeBytes, ByteSizeUnit.BYTES))
+                .setFlushInterval(TimeValue.timeValueMillis(flushIntervalMillis))
+                .setConcurrentRequests(concurrentRequests)
+                .setBackoffPolicy(BackoffPolicy.noBackoff())
+                .build();
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        // 先发送待删除的批次，等待按外键排序的删除及写入完成，之后批量处理器关闭
+        try {
+            updateFlusher.submit(this::flushDeletes).get();
+            CompletableFuture.allOf(foreignKeyWrites.values().toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            log.error("SyncEsWriter has been closed, some deletes by foreign key are not completed", e);
+        }
+        if (!bulkProcessor.awaitClose(30, TimeUnit.SECONDS) | !bulkLoadProcessor.awaitClose(30, TimeUnit.SECONDS)) {
+            log.error("SyncEsWriter has been closed, some bulk requests are not completed");
+        }
+        bulkSender.shutdown();
+        // 处理器关闭后，待重试的文档重新加入时直接记录到失败表
+        bulkRetryScheduler.shutdown();
+        bulkRetryScheduler.awaitTermination(30, TimeUnit.SECONDS);
+        if (!bulkItems.isEmpty()) {
+            log.error("SyncEsWriter has been closed, {} document writes will be lost", bulkItems.size());
+        }
+        updateFlusher.shutdown();
+        updateFlusher.awaitTermination(10, TimeUnit.SECONDS);
+        flushUpdates();
+        int permits = properties.getWriter().getMaxConcurrentUpdates();
+        if (updatePermits.tryAcquire(permits, 30, TimeUnit.SECONDS)) {
+            updatePermits.release(permits);
+        }
+        if (!pendingUpdates.isEmpty()) {
+            log.error("SyncEsWriter has been closed, {} pending updates will be lost, keys={}", pendingUpdates.size(), pendingUpdates.keySet());
+            IllegalStateException closed = new IllegalStateException("SyncEsWriter has been closed");
+            pendingUpdates.values().forEach(update -> update.getWaiters().forEach(waiter -> waiter.completeExceptionally(closed)));
+        }
+        if (!pendingDeletes.isEmpty()) {
+            log.error("SyncEsWriter has been closed, pending deletes will be lost, keys={}", pendingDeletes.keySet());
+        }
+    }
+
+    private void flushUpdates() {
+        for (PendingUpdateKey key : pendingUpdates.keySet()) {
+            // 同一外键的上一次更新未完成时，留到下次发送，保证顺序
+            if (inFlightUpdates.contains(key)) {
+                continue;
+            }
+            PendingUpdate update = pendingUpdates.remove(key);
+            if (update == null) {
+                continue;
+            }
+            try {
+                updatePermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pendingUpdates.merge(key, update, (newer, older) -> PendingUpdate.merge(older, newer));
+                return;
+            }
+            inFlightUpdates.add(key);
+            sendUpdate(key, update);
         }
+    }
+
+    private void sendUpdate(PendingUpdateKey key, PendingUpdate update) {
+        SyncEsWriterConfig config = update.getConfig();
         UpdateByQueryRequest request = new UpdateByQueryRequest(config.getEsIndex())
                 .setDocTypes(config.getEsType())
-                .setRefresh(true)
+                .setRefresh(config.getUpdateRefresh() != null && config.getUpdateRefresh() == 1)
                 .setAbortOnVersionConflict(false)
-                .setQuery(QueryBuilders.boolQuery().must(QueryBuilders.termQuery(config.getEsForeignKeyName(), foreignKeyValue)))
-                .setScript(buildScript(config, updateData));
-        esClient.updateByQuery(request, RequestOptions.DEFAULT);
+                .setQuery(QueryBuilders.boolQuery().must(QueryBuilders.termQuery(config.getEsForeignKeyName(), key.getForeignKeyValue())))
+                .setScript(buildScript(config, update.getData()));
+        invalidateHashes(config.getEsIndex());
+        long startNanos = System.nanoTime();
+        esClient.updateByQueryAsync(request, RequestOptions.DEFAULT, new ActionListener<BulkByScrollResponse>() {
+            @Override
+            public void onResponse(BulkByScrollResponse response) {
+                SyncMetrics.recordSince(startNanos, "es.by.query", "index", config.getEsIndex(), "op", "update");
+                completeUpdate(key);
+                // 版本冲突的文档未更新，重新发送
+                if (response.getVersionConflicts() > 0 || !response.getBulkFailures().isEmpty()) {
+                    retryUpdate(key, update, new IllegalStateException(String.format("versionConflicts=%s, bulkFailures=%s",
+                            response.getVersionConflicts(), response.getBulkFailures())));
+                } else {
+                    update.getWaiters().forEach(waiter -> waiter.complete(null));
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                SyncMetrics.recordSince(startNanos, "es.by.query", "index", config.getEsIndex(), "op", "update");
+                completeUpdate(key);
+                retryUpdate(key, update, e);
+            }
+        });
+    }
+
+    private void completeUpdate(PendingUpdateKey key) {
+        inFlightUpdates.remove(key);
+        updatePermits.release();
+    }
+
+    private void retryUpdate(PendingUpdateKey key, PendingUpdate update, Exception e) {
+        if (update.getAttempts() >= properties.getWriter().getUpdateRetryTimes()) {
+            log.error(String.format("Update es by query failed, index=%s, foreignKey=%s, updateData=%s",
+                    update.getConfig().getEsIndex(), key.getForeignKeyValue(), update.getData()), e);
+            update.getWaiters().forEach(waiter -> waiter.completeExceptionally(e));
+            return;
+        }
+        log.warn(String.format("Update es by query error, retry=%s, index=%s, foreignKey=%s",
+                update.getAttempts(), update.getConfig().getEsIndex(), key.getForeignKeyValue()), e);
+        // 缓冲中已有更新的值时，以缓冲中的值为准
+        PendingUpdate retry = new PendingUpdate(update.getConfig(), update.getData(), update.getAttempts() + 1, update.getWaiters());
+        pendingUpdates.merge(key, retry, (newer, older) -> PendingUpdate.merge(older, newer));
+    }
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class DocHashKey {
+        private final String index;
+        /**
+         * 索引的缓存代次，代次增加后旧的缓存不再命中
+         */
+        private final long generation;
+        private final String id;
+    }
+
+    /**
+     * 同一文档未结束的写入，只在hashWrites的compute中访问
+     */
+    private static class HashWrites {
+        private int count;
+        /**
+         * 期间文档被删除或局部更新，之前提交的写入成功时不记录hash
+         */
+        private boolean invalidated;
+    }
+
+    @Getter
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class PendingUpdateKey {
+        private final Integer configId;
+        private final String index;
+        private final Object foreignKeyValue;
+
+        @Override
+        public String toString() {
+            return configId + "/" + index + ":" + foreignKeyValue;
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class PendingUpdate {
+        private final SyncEsWriterConfig config;
+        private final Map<String, Object> data;
+        private final int attempts;
+        /**
+         * 合并进来的各次更新的future，发送完成时一起完成
+         */
+        private final List<CompletableFuture<Void>> waiters;
+
+        /**
+         * 合并两次更新，字段以较新的值为准
+         */
+        private static PendingUpdate merge(PendingUpdate older, PendingUpdate newer) {
+            Map<String, Object> data = new HashMap<>(older.getData());
+            data.putAll(newer.getData());
+            List<CompletableFuture<Void>> waiters = new ArrayList<>(older.getWaiters());
+            waiters.addAll(newer.getWaiters());
+            return new PendingUpdate(newer.getConfig(), data, newer.getAttempts(), waiters);
+        }
+    }
+
+    /**
+     * 配置加载时把更新脚本中的%field_name%转换为params.field_name，脚本内容不随数据变化，es只编译一次；脚本不合法时配置加载失败
+     */
+    @Override
+    public void prepare(SyncEsWriterConfig config) {
+        try {
+            preparedScripts.put(config, toParamScript(config.getUpdateScript()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage() + ", writerConfig id=" + config.getId(), e);
+        }
+    }
+
+    /**
+     * 引号外的%field_name%替换为params.field_name；整个字符串只是一个参数（'%name%'）时去掉引号，参数本身已带类型；
+     * 字符串中还有其他内容（'prefix_%name%'）时转换为字符串拼接('prefix_' + params.name)
+     * @throws IllegalArgumentException 字符串未闭合
+     */
+    static String toParamScript(String script) {
+        if (StringUtils.isBlank(script)) {
+            return script;
+        }
+        StringBuilder result = new StringBuilder(script.length() + 16);
+        int last = 0;
+        for (int i = 0; i < script.length(); i++) {
+            char quote = script.charAt(i);
+            if (quote != '\'' && quote != '"') {
+                continue;
+            }
+            int end = i + 1;
+            while (end < script.length() && script.charAt(end) != quote) {
+                end += script.charAt(end) == '\\' ? 2 : 1;
+            }
+            if (end >= script.length()) {
+                throw new IllegalArgumentException("Unclosed string literal in update script: " + script);
+            }
+            result.append(SCRIPT_PARAM.matcher(script.substring(last, i)).replaceAll("params.$1"));
+            appendScriptLiteral(result, quote, script.substring(i + 1, end));
+            last = end + 1;
+            i = end;
+        }
+        result.append(SCRIPT_PARAM.matcher(script.substring(last)).replaceAll("params.$1"));
+        return result.toString();
+    }
+
+    private static void appendScriptLiteral(StringBuilder result, char quote, String content) {
+        Matcher matcher = SCRIPT_PARAM.matcher(content);
+        if (!matcher.find()) {
+            result.append(quote).append(content).append(quote);
+            return;
+        }
+        if (matcher.start() == 0 && matcher.end() == content.length()) {
+            result.append("params.").append(matcher.group(1));
+            return;
+        }
+        result.append('(');
+        int last = 0;
+        do {
+            if (matcher.start() > last) {
+                result.append(quote).append(content, last, matcher.start()).append(quote).append(" + ");
+            } else if (last == 0) {
+                // 以参数开头时先拼接空字符串，保证按字符串拼接
+                result.append(quote).append(quote).append(" + ");
+            }
+            result.append("params.").append(matcher.group(1));
+            last = matcher.end();
+            if (last < content.length()) {
+                result.append(" + ");
+            }
+        } while (matcher.find());
+        if (last < content.length()) {
+            result.append(quote).append(content.substring(last)).append(quote);
+        }
+        result.append(')');
     }
 
     private Script buildScript(SyncEsWriterConfig config, Map<String, Object> updateData) {
-        String script = config.getUpdateScript();
+        String source = preparedScripts.computeIfAbsent(config, c -> toParamScript(c.getUpdateScript()));
+        Map<String, Object> params = new HashMap<>(updateData.size());
         for (Map.Entry<String, Object> entry : updateData.entrySet()) {
-            script = script.replaceAll("%"+ entry.getKey() +"%", convertEsValue(entry.getValue()));
+            params.put(entry.getKey(), toEsValue(entry.getValue()));
         }
-        return Script.parse(Settings.builder().put("source", script).build());
+        return new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, source, params);
     }
 
-    private String convertEsValue(Object value) {
-        if (value == null) {
-            return "null";
-        }
-        if (value instanceof String) {
-            return "'"+ value +"'";
+    /**
+     * 脚本参数及查询条件的值转换为可序列化的类型，日期按文档中的格式转为字符串，高精度数值转为double
+     */
+    private Object toEsValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean) {
+            return value;
         }
         if (value instanceof Date) {
-            return "'" + DateUtils.format((Date) value) + "'";
+            return DateUtils.format((Date) value);
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).doubleValue();
+        }
+        if (value instanceof BigInteger) {
+            BigInteger integer = (BigInteger) value;
+            return integer.bitLength() < 64 ? (Object) integer.longValue() : integer.doubleValue();
+        }
+        if (value instanceof Number) {
+            return value;
         }
         return value.toString();
     }
 
     @Override
-    public void delete(SyncEsWriterConfig config, DataChangeEvent event) throws IOException {
+    public void delete(SyncEsWriterConfig config, DataChangeEvent event) throws Exception {
+        Futures.await(deleteAsync(config, event));
+    }
+
+    /**
+     * 主表删除加入批量处理器；从表按外键删除先缓冲，同一配置的多个外键合并为一次terms查询的delete by query
+     */
+    @Override
+    public CompletableFuture<Void> deleteAsync(SyncEsWriterConfig config, DataChangeEvent event) throws IOException {
+        CompletableFuture<Void> future = deleteFromIndex(config, event);
+        SyncEsWriterConfig rebuildConfig = getRebuildConfig(config);
+        return rebuildConfig == null ? future : CompletableFuture.allOf(future, deleteFromIndex(rebuildConfig, event));
+    }
+
+    private CompletableFuture<Void> deleteFromIndex(SyncEsWriterConfig config, DataChangeEvent event) {
         if (config.getIsMainTable() == 1) {
             Object id = tryGetValueFromEvent(config.getIdOriginName(), event);
             if (id == null) {
-                return;
+                return Futures.done();
             }
             DeleteRequest request = new DeleteRequest(config.getEsIndex(), config.getEsType(), getId(config.getEsIdPrefix(), String.valueOf(id)));
             if (StringUtils.isNotBlank(config.getEsRouting())) {
                 request.routing(config.getEsRouting());
             }
-            esClient.delete(request, RequestOptions.DEFAULT);
+            invalidateHash(request.index(), request.id());
+            return submit(Collections.singletonList(request), bulkProcessor, null, null, null, null);
         } else {
             if (StringUtils.isBlank(config.getEsForeignKeyName())) {
-                return;
+                return Futures.done();
             }
             Object value = tryGetValueFromEvent(config.getForeignKeyOriginName(), event);
             if (value == null) {
+                return Futures.done();
+            }
+            return bufferDelete(config, toEsValue(value));
+        }
+    }
+
+    /**
+     * 同一索引、外键字段的删除合并到一个待删除批次；批次等待各外键之前提交的写入完成后发送，
+     * 之后提交的同一外键的写入等待批次完成，避免删除后重新写入的文档被随后执行的删除误删
+     */
+    private CompletableFuture<Void> bufferDelete(SyncEsWriterConfig config, Object foreignKeyValue) {
+        String batchKey = config.getEsIndex() + "/" + config.getEsType() + "/" + config.getEsForeignKeyName();
+        String foreignKey = getForeignKey(config, foreignKeyValue);
+        PendingDelete pending = pendingDeletes.compute(batchKey, (key, current) -> {
+            if (current == null) {
+                current = new PendingDelete(batchKey, config);
+            }
+            if (current.foreignKeyValues.add(foreignKeyValue)) {
+                CompletableFuture<Void> previous = foreignKeyWrites.put(foreignKey, current.future);
+                if (previous != null && !previous.isDone()) {
+                    current.waits.add(previous);
+                }
+                PendingDelete added = current;
+                current.future.whenComplete((v, e) -> foreignKeyWrites.remove(foreignKey, added.future));
+            }
+            return current;
+        });
+        if (pending.foreignKeyValues.size() >= properties.getWriter().getDeleteBatchSize()) {
+            closeDelete(pending);
+        }
+        return pending.future;
+    }
+
+    private String getForeignKey(SyncEsWriterConfig config, Object foreignKeyValue) {
+        return config.getEsIndex() + "/" + config.getEsForeignKeyName() + "/" + foreignKeyValue;
+    }
+
+    /**
+     * 写入的外键在未发送的删除批次中时，立即发送该批次，之后的删除进入新批次
+     */
+    private void closeDelete(CompletableFuture<Void> previousOfKey) {
+        for (PendingDelete pending : pendingDeletes.values()) {
+            if (pending.future == previousOfKey) {
+                closeDelete(pending);
                 return;
             }
-            DeleteByQueryRequest request = new DeleteByQueryRequest(config.getEsIndex()).setDocTypes(config.getEsType());
-            request.setQuery(QueryBuilders.termQuery(config.getEsForeignKeyName(), convertEsValue(value)));
-            esClient.deleteByQuery(request, RequestOptions.DEFAULT);
+        }
+    }
+
+    private void closeDelete(PendingDelete pending) {
+        if (pendingDeletes.remove(pending.batchKey, pending)) {
+            updateFlusher.execute(() -> sendDeletes(pending));
+        }
+    }
+
+    private void flushDeletes() {
+        for (PendingDelete pending : pendingDeletes.values()) {
+            if (pendingDeletes.remove(pending.batchKey, pending)) {
+                sendDeletes(pending);
+            }
+        }
+    }
+
+    private void sendDeletes(PendingDelete pending) {
+        CompletableFuture.allOf(pending.waits.toArray(new CompletableFuture[0])).whenCompleteAsync((ignored, waitFailure) -> {
+            List<Object> values = new ArrayList<>(pending.foreignKeyValues);
+            List<List<Object>> partitions = Lists.partition(values, properties.getWriter().getDeleteBatchSize());
+            List<CompletableFuture<Void>> futures = new ArrayList<>(partitions.size());
+            for (List<Object> partition : partitions) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                futures.add(future);
+                try {
+                    updatePermits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(e);
+                    continue;
+                }
+                sendDelete(pending.config, partition, 0, future);
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+                if (e != null) {
+                    pending.future.completeExceptionally(e);
+                } else {
+                    pending.future.complete(null);
+                }
+            });
+        }, updateFlusher);
+    }
+
+    private void sendDelete(SyncEsWriterConfig config, List<Object> foreignKeyValues, int attempts, CompletableFuture<Void> future) {
+        DeleteByQueryRequest request = new DeleteByQueryRequest(config.getEsIndex())
+                .setDocTypes(config.getEsType())
+                .setAbortOnVersionConflict(false)
+                .setQuery(QueryBuilders.termsQuery(config.getEsForeignKeyName(), foreignKeyValues));
+        invalidateHashes(config.getEsIndex());
+        long startNanos = System.nanoTime();
+        esClient.deleteByQueryAsync(request, RequestOptions.DEFAULT, new ActionListener<BulkByScrollResponse>() {
+            @Override
+            public void onResponse(BulkByScrollResponse response) {
+                SyncMetrics.recordSince(startNanos, "es.by.query", "index", config.getEsIndex(), "op", "delete");
+                updatePermits.release();
+                // 版本冲突的文档未删除，重新发送
+                if (response.getVersionConflicts() > 0 || !response.getBulkFailures().isEmpty()) {
+                    retryDelete(config, foreignKeyValues, attempts, future, new IllegalStateException(String.format(
+                            "versionConflicts=%s, bulkFailures=%s", response.getVersionConflicts(), response.getBulkFailures())));
+                    return;
+                }
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                SyncMetrics.recordSince(startNanos, "es.by.query", "index", config.getEsIndex(), "op", "delete");
+                updatePermits.release();
+                retryDelete(config, foreignKeyValues, attempts, future, e);
+            }
+        });
+    }
+
+    private void retryDelete(SyncEsWriterConfig config, List<Object> foreignKeyValues, int attempts,
+                             CompletableFuture<Void> future, Exception e) {
+        if (attempts >= properties.getWriter().getUpdateRetryTimes()) {
+            log.error(String.format("Delete es by query failed, index=%s, foreignKeys=%s", config.getEsIndex(), foreignKeyValues), e);
+            future.completeExceptionally(e);
+            return;
+        }
+        log.warn(String.format("Delete es by query error, retry=%s, index=%s, foreignKeys=%s",
+                attempts, config.getEsIndex(), foreignKeyValues.size()), e);
+        try {
+            updateFlusher.schedule(() -> {
+                try {
+                    updatePermits.acquire();
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(interrupted);
+                    return;
+                }
+                sendDelete(config, foreignKeyValues, attempts + 1, future);
+            }, properties.getWriter().getUpdateFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+            log.error(String.format("SyncEsWriter has been closed, delete es by query failed, index=%s, foreignKeys=%s",
+                    config.getEsIndex(), foreignKeyValues), e);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static class PendingDelete {
+        private final String batchKey;
+        private final SyncEsWriterConfig config;
+        private final Set<Object> foreignKeyValues = new LinkedHashSet<>();
+        /**
+         * 各外键之前提交的未完成的写入
+         */
+        private final List<CompletableFuture<Void>> waits = new ArrayList<>();
+        /**
+         * 批次中的删除全部完成时完成
+         */
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingDelete(String batchKey, SyncEsWriterConfig config) {
+            this.batchKey = batchKey;
+            this.config = config;
         }
     }
 
@@ -124,45 +1387,44 @@ public class SyncEsWriter implements SyncWriter<SyncEsWriterConfig> {
         if (fieldName.equals(event.getPrimaryKeyData().getName())) {
             value = event.getPrimaryKeyData().getValue();
         } else {
+            DataChangeEvent.FieldData field = null;
             if (event.getBefore() != null && !CollectionUtils.isEmpty(event.getBefore().getFields())) {
-                value = event.getBefore().getFields().get(fieldName);
+                field = event.getBefore().getFields().get(fieldName);
             } else if (event.getAfter() != null && !CollectionUtils.isEmpty(event.getAfter().getFields())) {
-                value = event.getAfter().getFields().get(fieldName);
+                field = event.getAfter().getFields().get(fieldName);
             }
+            value = field == null ? null : field.getValue();
         }
         return value;
     }
 
-    private XContentBuilder buildSource(Map<String, Object> data) throws Exception {
-        XContentBuilder source = XContentFactory.jsonBuilder();
-        source.startObject();
-        for (Map.Entry<String, Object> entry : data.entrySet()) {
-            addFieldWithValueType(source, entry);
-        }
-        source.endObject();
-        return source;
-    }
-
-    private void addFieldWithValueType(XContentBuilder source, Map.Entry<String, Object> entry) throws IOException {
-        Object value = entry.getValue();
-        String name = entry.getKey();
-        if (value == null) {
-            source.nullField(name);
-        } else if (value instanceof Long) {
-            source.field(name, (Long) value);
-        } else if (value instanceof Integer) {
-            source.field(name, (Integer) value);
-        } else if (value instanceof Iterable) {
-            source.field(name, (Iterable<?>) value);
-        } else if (value instanceof Float) {
-            source.field(name, (Float) value);
-        } else if (value instanceof String) {
-            source.field(name, value.toString());
-        } else if (value instanceof Date) {
-            source.field(name, DateUtils.format((Date) value));
-        }else {
-            source.field(name, value);
+    /**
+     * 按文档id批量删除
+     */
+    public void deleteByIds(SyncEsWriterConfig config, Collection<String> ids) throws IOException {
+        if (CollectionUtils.isEmpty(ids)) {
+            return;
         }
+        BulkRequest bulk = new BulkRequest();
+        for (String id : ids) {
+            invalidateHash(config.getEsIndex(), id);
+            DeleteRequest request = new DeleteRequest(config.getEsIndex(), config.getEsType(), id);
+            if (StringUtils.isNotBlank(config.getEsRouting())) {
+                request.routing(config.getEsRouting());
+            }
+            bulk.add(request);
+        }
+        BulkResponse response = esClient.bulk(bulk, RequestOptions.DEFAULT);
+        if (response.hasFailures()) {
+            throw new IllegalStateException("Delete es documents failed, index=" + config.getEsIndex() + ", " + response.buildFailureMessage());
+        }
+    }
+
+    /**
+     * 整条数据对应的文档id
+     */
+    public String getDocumentId(SyncEsWriterConfig config, Map<String, Object> datum) {
+        return getId(config.getEsIdPrefix(), String.valueOf(datum.get(config.getEsIdName())));
     }
 
     private String getId(String idPrefix, String id) {
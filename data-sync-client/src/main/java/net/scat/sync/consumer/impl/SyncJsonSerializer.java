@@ -0,0 +1,297 @@
+package net.scat.sync.consumer.impl;
+
+import com.google.common.collect.MapMaker;
+import net.scat.sync.consumer.base.SyncRow;
+import net.scat.sync.consumer.base.SyncRowSchema;
+import net.scat.sync.model.SyncEsWriterConfig;
+import net.scat.sync.utils.DateUtils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 文档序列化为json：写入线程复用的缓冲区，只为结果分配一次byte[]；字段名按配置预先编码为"name":，
+ * 同一查询结果的行共享一组字段名；值的类型及日期格式与原XContentBuilder写法一致
+ */
+class SyncJsonSerializer {
+    /**
+     * 超过此大小的缓冲区用完后丢弃，避免个别大文档长期占用内存
+     */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final ThreadLocal<JsonBuffer> buffers = ThreadLocal.withInitial(JsonBuffer::new);
+    /**
+     * 配置 -> 字段名 -> 编码后的"name":
+     */
+    private final ConcurrentMap<SyncEsWriterConfig, ConcurrentHashMap<String, byte[]>> fieldNames = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * 序列化一批文档，同一查询结果的行只查找一次字段名
+     */
+    List<byte[]> serialize(SyncEsWriterConfig config, List<Map<String, Object>> data) {
+        ConcurrentHashMap<String, byte[]> names = fieldNames.computeIfAbsent(config, c -> new ConcurrentHashMap<>());
+        JsonBuffer buffer = buffers.get();
+        List<byte[]> sources = new ArrayList<>(data.size());
+        SyncRowSchema schema = null;
+        byte[][] schemaNames = null;
+        try {
+            for (Map<String, Object> datum : data) {
+                buffer.reset();
+                buffer.write('{');
+                boolean first = true;
+                Map<String, Object> fields = datum;
+                if (datum instanceof SyncRow) {
+                    SyncRow row = (SyncRow) datum;
+                    if (row.getSchema() != schema) {
+                        schema = row.getSchema();
+                        schemaNames = new byte[schema.size()][];
+                        for (int i = 0; i < schemaNames.length; i++) {
+                            schemaNames[i] = getName(names, schema.getColumn(i));
+                        }
+                    }
+                    for (int i = 0; i < schemaNames.length; i++) {
+                        if (!first) {
+                            buffer.write(',');
+                        }
+                        first = false;
+                        buffer.write(schemaNames[i]);
+                        writeValue(buffer, row.getValue(i));
+                    }
+                    fields = row.getExtra();
+                }
+                for (Map.Entry<String, Object> entry : fields.entrySet()) {
+                    if (!first) {
+                        buffer.write(',');
+                    }
+                    first = false;
+                    buffer.write(getName(names, entry.getKey()));
+                    writeValue(buffer, entry.getValue());
+                }
+                buffer.write('}');
+                sources.add(buffer.toByteArray());
+            }
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+                buffers.remove();
+            }
+        }
+        return sources;
+    }
+
+    private byte[] getName(ConcurrentHashMap<String, byte[]> names, String name) {
+        byte[] encoded = names.get(name);
+        if (encoded == null) {
+            JsonBuffer buffer = new JsonBuffer();
+            writeString(buffer, name);
+            buffer.write(':');
+            encoded = buffer.toByteArray();
+            names.putIfAbsent(name, encoded);
+        }
+        return encoded;
+    }
+
+    private void writeValue(JsonBuffer buffer, Object value) {
+        if (value == null) {
+            buffer.write(NULL);
+        } else if (value instanceof String) {
+            writeString(buffer, (String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            buffer.writeLong(((Number) value).longValue());
+        } else if (value instanceof Date) {
+            buffer.write('"');
+            buffer.writeAscii(DateUtils.format((Date) value, buffer.chars()));
+            buffer.write('"');
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                writeString(buffer, value.toString());
+            } else {
+                buffer.writeAscii(value.toString());
+            }
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            buffer.writeAscii(value.toString());
+        } else if (value instanceof Boolean) {
+            buffer.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof byte[]) {
+            buffer.write('"');
+            buffer.writeAscii(Base64.getEncoder().encodeToString((byte[]) value));
+            buffer.write('"');
+        } else if (value instanceof Map) {
+            buffer.write('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    buffer.write(',');
+                }
+                first = false;
+                writeString(buffer, String.valueOf(entry.getKey()));
+                buffer.write(':');
+                writeValue(buffer, entry.getValue());
+            }
+            buffer.write('}');
+        } else if (value instanceof Iterable || value instanceof Object[]) {
+            Iterable<?> values = value instanceof Iterable ? (Iterable<?>) value : Arrays.asList((Object[]) value);
+            buffer.write('[');
+            boolean first = true;
+            for (Object element : values) {
+                if (!first) {
+                    buffer.write(',');
+                }
+                first = false;
+                writeValue(buffer, element);
+            }
+            buffer.write(']');
+        } else {
+            writeString(buffer, value.toString());
+        }
+    }
+
+    /**
+     * 按json规则转义，直接编码为utf-8
+     */
+    private void writeString(JsonBuffer buffer, String value) {
+        buffer.write('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    buffer.write('\\');
+                }
+                buffer.write(c);
+            } else if (c < 0x20) {
+                writeEscaped(buffer, c);
+            } else if (c < 0x800) {
+                buffer.write(0xc0 | (c >> 6));
+                buffer.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.write(0xf0 | (codePoint >> 18));
+                buffer.write(0x80 | ((codePoint >> 12) & 0x3f));
+                buffer.write(0x80 | ((codePoint >> 6) & 0x3f));
+                buffer.write(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buffer.write('?');
+            } else {
+                buffer.write(0xe0 | (c >> 12));
+                buffer.write(0x80 | ((c >> 6) & 0x3f));
+                buffer.write(0x80 | (c & 0x3f));
+            }
+        }
+        buffer.write('"');
+    }
+
+    private void writeEscaped(JsonBuffer buffer, char c) {
+        buffer.write('\\');
+        switch (c) {
+            case '\n':
+                buffer.write('n');
+                break;
+            case '\r':
+                buffer.write('r');
+                break;
+            case '\t':
+                buffer.write('t');
+                break;
+            case '\b':
+                buffer.write('b');
+                break;
+            case '\f':
+                buffer.write('f');
+                break;
+            default:
+                buffer.write('u');
+                buffer.write('0');
+                buffer.write('0');
+                buffer.write(HEX[c >> 4]);
+                buffer.write(HEX[c & 0xf]);
+        }
+    }
+
+    /**
+     * 可增长的字节缓冲区，附带格式化日期用的字符缓冲区
+     */
+    private static class JsonBuffer {
+        private byte[] bytes = new byte[4096];
+        private int size;
+        private final StringBuilder chars = new StringBuilder(32);
+
+        void reset() {
+            size = 0;
+        }
+
+        int capacity() {
+            return bytes.length;
+        }
+
+        void write(int b) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void write(byte[] b) {
+            ensureCapacity(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        /**
+         * 只能用于ascii字符
+         */
+        void writeAscii(CharSequence value) {
+            int length = value.length();
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                bytes[size++] = (byte) value.charAt(i);
+            }
+        }
+
+        void writeLong(long value) {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                bytes[size++] = '-';
+                value = -value;
+            }
+            int start = size;
+            do {
+                bytes[size++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = size - 1; i < j; i++, j--) {
+                byte b = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = b;
+            }
+        }
+
+        /**
+         * 清空后返回字符缓冲区
+         */
+        StringBuilder chars() {
+            chars.setLength(0);
+            return chars;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package net.scat.sync.consumer.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.config.SyncClientProperties;
+import net.scat.sync.consumer.base.AbstractSyncConsumer.SyncConfigPair;
+import net.scat.sync.mapper.SyncRebuildIndexMapper;
+import net.scat.sync.model.SyncBootstrapTask;
+import net.scat.sync.model.SyncEsWriterConfig;
+import net.scat.sync.model.SyncRebuildIndex;
+import net.scat.sync.model.SyncSqlReaderConfig;
+import net.scat.sync.server.SyncResetPointService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 重建索引：新建带时间后缀的索引，复制当前索引的mapping及设置，导入期间去掉副本、关闭刷新，
+ * 增量写入同时写入新索引，全量数据经批量导入写入；完成后强制合并、恢复副本及刷新间隔，等待新索引green后原子切换别名。
+ * 要求写入配置的索引名为别名，旧索引保留，确认后手动删除。
+ * 双写状态记录在sync_rebuild_index表，各实例启动时及定时加载，其他实例开始双写前的增量会遗漏；
+ * 导入期间新索引不刷新，按查询的更新、删除也会遗漏未刷新的文档，因此必须指定消费组，切换别名后把位点重置到任务开始时间补上
+ */
+@Component
+@Slf4j
+public class SyncRebuildService {
+    private static final FastDateFormat INDEX_SUFFIX_FORMAT = FastDateFormat.getInstance("yyyyMMddHHmmss");
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    /**
+     * 索引创建时生成、不能复制到新索引的设置
+     */
+    private static final List<String> INTERNAL_SETTINGS = Arrays.asList("index.uuid", "index.creation_date",
+            "index.provided_name", "index.version.", "index.resize.", "index.routing.allocation.initial_recovery.");
+    private static final int STATUS_DUAL_WRITING = 0;
+    private static final int STATUS_SWAPPED = 1;
+    private static final int STATUS_CANCELLED = 2;
+    private final SyncEsBySqlConsumer consumer;
+    private final SyncBootstrapService bootstrapService;
+    private final SyncEsWriter syncEsWriter;
+    private final RestHighLevelClient esClient;
+    private final SyncRebuildIndexMapper rebuildIndexMapper;
+    private final SyncClientProperties properties;
+    @Autowired(required = false)
+    private SyncResetPointService resetPointService;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SyncRebuildService_worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService stateLoader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SyncRebuildService_state_loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SyncRebuildService(SyncEsBySqlConsumer consumer, SyncBootstrapService bootstrapService, SyncEsWriter syncEsWriter,
+                              RestHighLevelClient esClient, SyncRebuildIndexMapper rebuildIndexMapper, SyncClientProperties properties) {
+        this.consumer = consumer;
+        this.bootstrapService = bootstrapService;
+        this.syncEsWriter = syncEsWriter;
+        this.esClient = esClient;
+        this.rebuildIndexMapper = rebuildIndexMapper;
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    public void init() {
+        loadDualWrites();
+        long interval = properties.getRebuild().getStateCheckIntervalSeconds();
+        stateLoader.scheduleWithFixedDelay(this::loadDualWrites, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void close() {
+        stateLoader.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * 按sync_rebuild_index中双写中的记录开始或停止本实例的双写，加载失败时保持当前状态
+     */
+    private synchronized void loadDualWrites() {
+        Map<String, String> dualWrites;
+        try {
+            dualWrites = rebuildIndexMapper.selectDualWriting().stream()
+                    .collect(Collectors.toMap(SyncRebuildIndex::getEsAlias, SyncRebuildIndex::getTargetIndex, (a, b) -> b));
+        } catch (Exception e) {
+            log.error("Load rebuild index state error, keep current dual writes=" + syncEsWriter.getDualWrites(), e);
+            return;
+        }
+        for (String alias : new ArrayList<>(syncEsWriter.getDualWrites().keySet())) {
+            if (!dualWrites.containsKey(alias)) {
+                syncEsWriter.stopDualWrite(alias);
+            }
+        }
+        dualWrites.forEach((alias, index) -> {
+            if (!index.equals(syncEsWriter.getDualWrites().get(alias))) {
+                syncEsWriter.startDualWrite(alias, index);
+            }
+        });
+    }
+
+    /**
+     * 创建新索引并开始重建
+     * @param chunkSize 每个分片的主键范围大小，为空时使用默认值
+     * @param groupId 切换别名后重置消费位点的消费组，补上新索引遗漏的增量，不能为空
+     * @return 导入新索引的全量初始化任务id，失败后可按此id继续
+     */
+    public synchronized Long rebuild(Integer readerConfId, Long chunkSize, String groupId) throws IOException {
+        checkGroupId(groupId);
+        String alias = getWriterConfig(readerConfId).getEsIndex();
+        checkNotRebuilding(alias);
+        Set<String> indices = getAliasIndices(alias);
+        String sourceIndex = indices.iterator().next();
+        String index = alias + "_" + INDEX_SUFFIX_FORMAT.format(new Date());
+        createIndex(sourceIndex, index);
+        // 先记录并开始双写再创建任务（记录开始时间），之后的变更都会写入新索引，其他实例加载前的变更由重置位点补上
+        SyncRebuildIndex rebuildIndex = new SyncRebuildIndex();
+        rebuildIndex.setEsAlias(alias);
+        rebuildIndex.setTargetIndex(index);
+        rebuildIndex.setTaskId(0L);
+        rebuildIndex.setStatus(STATUS_DUAL_WRITING);
+        rebuildIndexMapper.insert(rebuildIndex);
+        syncEsWriter.startDualWrite(alias, index);
+        SyncBootstrapTask task;
+        try {
+            task = bootstrapService.create(readerConfId, chunkSize, null, index);
+            rebuildIndexMapper.updateTaskId(rebuildIndex.getId(), task.getId());
+        } catch (RuntimeException e) {
+            rebuildIndexMapper.updateStatus(rebuildIndex.getId(), STATUS_CANCELLED);
+            syncEsWriter.stopDualWrite(alias);
+            throw e;
+        }
+        log.info("Rebuild started, alias={}, sourceIndex={}, index={}, taskId={}", alias, sourceIndex, index, task.getId());
+        run(task, rebuildIndex, groupId);
+        return task.getId();
+    }
+
+    /**
+     * 继续执行失败或中断的重建，未完成的分片继续导入，之后切换别名
+     * @param groupId 切换别名后重置消费位点的消费组，不能为空；中断期间新索引遗漏的增量由此补上
+     */
+    public synchronized void resume(Long taskId, String groupId) {
+        checkGroupId(groupId);
+        SyncBootstrapTask task = bootstrapService.getTask(taskId);
+        SyncRebuildIndex rebuildIndex = rebuildIndexMapper.selectByTaskId(taskId);
+        if (StringUtils.isBlank(task.getTargetIndex()) || rebuildIndex == null) {
+            throw new IllegalArgumentException("Bootstrap task is not a rebuild task, taskId=" + taskId);
+        }
+        if (rebuildIndex.getStatus() != STATUS_DUAL_WRITING) {
+            throw new IllegalStateException("Rebuild has been swapped or cancelled, taskId=" + taskId + ", status=" + rebuildIndex.getStatus());
+        }
+        syncEsWriter.startDualWrite(rebuildIndex.getEsAlias(), rebuildIndex.getTargetIndex());
+        run(task, rebuildIndex, groupId);
+    }
+
+    /**
+     * 放弃重建，停止各实例的双写；新索引保留，确认后手动删除
+     */
+    public synchronized void cancel(Integer readerConfId) {
+        String alias = getWriterConfig(readerConfId).getEsIndex();
+        for (SyncRebuildIndex rebuildIndex : rebuildIndexMapper.selectDualWriting()) {
+            if (rebuildIndex.getEsAlias().equals(alias)) {
+                rebuildIndexMapper.updateStatus(rebuildIndex.getId(), STATUS_CANCELLED);
+            }
+        }
+        syncEsWriter.stopDualWrite(alias);
+    }
+
+    private void checkGroupId(String groupId) {
+        if (StringUtils.isBlank(groupId)) {
+            throw new IllegalArgumentException("Rebuild requires groupId, check point is reset to the task start time after alias swapped");
+        }
+        if (resetPointService == null) {
+            throw new IllegalStateException("Rebuild requires SyncResetPointService to reset check point after alias swapped");
+        }
+    }
+
+    private void run(SyncBootstrapTask task, SyncRebuildIndex rebuildIndex, String groupId) {
+        bootstrapService.execute(task.getId()).whenCompleteAsync((success, e) -> {
+            String alias = getWriterConfig(task.getReaderConfId()).getEsIndex();
+            if (e != null || !success) {
+                // 保持双写，继续执行时不需要重新导入
+                log.error(String.format("Rebuild failed, resume or cancel it, alias=%s, index=%s, taskId=%s",
+                        alias, task.getTargetIndex(), task.getId()), e);
+                return;
+            }
+            try {
+                finish(task, rebuildIndex, alias, groupId);
+            } catch (Exception finishError) {
+                log.error(String.format("Rebuild finish failed, resume or cancel it, alias=%s, index=%s, taskId=%s",
+                        alias, task.getTargetIndex(), task.getId()), finishError);
+            }
+        }, executor);
+    }
+
+    /**
+     * 导入完成后：强制合并（先于恢复副本，副本直接复制合并后的段），恢复副本及刷新间隔，等待green后切换别名并停止双写
+     */
+    private void finish(SyncBootstrapTask task, SyncRebuildIndex rebuildIndex, String alias, String groupId) throws IOException {
+        String index = task.getTargetIndex();
+        Set<String> oldIndices = getAliasIndices(alias);
+        oldIndices.remove(index);
+        esClient.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+        try {
+            esClient.indices().forcemerge(new ForceMergeRequest(index)
+                    .maxNumSegments(properties.getRebuild().getMaxNumSegments()), RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            // 请求超时后合并仍在es继续执行
+            log.warn("Force merge not completed, index=" + index, e);
+        }
+        Settings sourceSettings = getIndexSettings(oldIndices.isEmpty() ? index : oldIndices.iterator().next());
+        Settings.Builder restore = Settings.builder()
+                .put(NUMBER_OF_REPLICAS, sourceSettings.get(NUMBER_OF_REPLICAS, "1"));
+        if (sourceSettings.get(REFRESH_INTERVAL) == null) {
+            restore.putNull(REFRESH_INTERVAL);
+        } else {
+            restore.put(REFRESH_INTERVAL, sourceSettings.get(REFRESH_INTERVAL));
+        }
+        esClient.indices().putSettings(new UpdateSettingsRequest(index).settings(restore), RequestOptions.DEFAULT);
+        waitForGreen(index);
+
+        IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+        for (String oldIndex : oldIndices) {
+            aliasesRequest.addAliasAction(AliasActions.remove().index(oldIndex).alias(alias));
+        }
+        aliasesRequest.addAliasAction(AliasActions.add().index(index).alias(alias));
+        if (!esClient.indices().updateAliases(aliasesRequest, RequestOptions.DEFAULT).isAcknowledged()) {
+            throw new IllegalStateException("Swap alias not acknowledged, alias=" + alias + ", index=" + index);
+        }
+        // 与定时加载互斥，避免加载到切换前的状态后重新开始双写
+        synchronized (this) {
+            rebuildIndexMapper.updateStatus(rebuildIndex.getId(), STATUS_SWAPPED);
+            syncEsWriter.stopDualWrite(alias);
+        }
+        // 别名已指向新索引，之前缓存的内容hash不再对应
+        syncEsWriter.invalidateHashes(alias);
+        log.info("Rebuild done, alias={}, index={}, oldIndices={}, taskId={}", alias, index, oldIndices, task.getId());
+        resetPoint(task, groupId);
+    }
+
+    private void resetPoint(SyncBootstrapTask task, String groupId) {
+        if (!resetPointService.reset(groupId, task.getStartTime().getTime() / 1000)) {
+            log.error("Reset check point failed, taskId={}, groupId={}, startTime={}", task.getId(), groupId, task.getStartTime());
+        }
+    }
+
+    /**
+     * 按源索引的mapping及设置创建新索引，去掉副本、关闭刷新
+     */
+    private void createIndex(String sourceIndex, String index) throws IOException {
+        GetIndexResponse response = esClient.indices().get(new GetIndexRequest().indices(sourceIndex), RequestOptions.DEFAULT);
+        Settings.Builder settings = Settings.builder();
+        Settings sourceSettings = response.getSettings().get(sourceIndex);
+        for (String key : sourceSettings.keySet()) {
+            if (INTERNAL_SETTINGS.stream().noneMatch(key::startsWith)) {
+                settings.copy(key, sourceSettings);
+            }
+        }
+        settings.put(NUMBER_OF_REPLICAS, 0).put(REFRESH_INTERVAL, "-1");
+        CreateIndexRequest request = new CreateIndexRequest(index).settings(settings);
+        ImmutableOpenMap<String, MappingMetaData> mappings = response.getMappings().get(sourceIndex);
+        if (mappings != null) {
+            mappings.forEach(mapping -> request.mapping(mapping.key, mapping.value.sourceAsMap()));
+        }
+        esClient.indices().create(request, RequestOptions.DEFAULT);
+        log.info("Rebuild index created, sourceIndex={}, index={}", sourceIndex, index);
+    }
+
+    private Settings getIndexSettings(String index) throws IOException {
+        GetIndexResponse response = esClient.indices().get(new GetIndexRequest().indices(index), RequestOptions.DEFAULT);
+        return response.getSettings().get(index);
+    }
+
+    /**
+     * 分次等待，单次等待不超过客户端的请求超时
+     */
+    private void waitForGreen(String index) throws IOException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(properties.getRebuild().getGreenTimeoutSeconds());
+        while (true) {
+            ClusterHealthResponse health = esClient.cluster().health(new ClusterHealthRequest(index)
+                    .waitForGreenStatus().timeout(TimeValue.timeValueSeconds(20)), RequestOptions.DEFAULT);
+            if (!health.isTimedOut()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Wait for index green timeout, index=" + index + ", status=" + health.getStatus());
+            }
+        }
+    }
+
+    private Set<String> getAliasIndices(String alias) throws IOException {
+        Set<String> indices = new HashSet<>(esClient.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT)
+                .getAliases().keySet());
+        if (indices.isEmpty()) {
+            throw new IllegalArgumentException("Rebuild requires esIndex to be an alias, esIndex=" + alias);
+        }
+        return indices;
+    }
+
+    private void checkNotRebuilding(String alias) {
+        for (SyncRebuildIndex rebuildIndex : rebuildIndexMapper.selectDualWriting()) {
+            if (rebuildIndex.getEsAlias().equals(alias)) {
+                throw new IllegalStateException("Index is rebuilding, alias=" + alias + ", index=" + rebuildIndex.getTargetIndex()
+                        + ", taskId=" + rebuildIndex.getTaskId());
+            }
+        }
+    }
+
+    private SyncEsWriterConfig getWriterConfig(Integer readerConfId) {
+        SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair = consumer.getConfigPair(readerConfId);
+        if (pair == null) {
+            throw new IllegalArgumentException("Can not find reader and writer config, readerConfig id=" + readerConfId);
+        }
+        return pair.getWriter();
+    }
+}
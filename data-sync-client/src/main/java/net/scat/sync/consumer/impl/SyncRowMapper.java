@@ -0,0 +1,35 @@
+package net.scat.sync.consumer.impl;
+
+import net.scat.sync.consumer.base.SyncRow;
+import net.scat.sync.consumer.base.SyncRowSchema;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * 映射为{@link SyncRow}，第一行时解析字段信息，之后的行共享；一个实例只能用于一次查询
+ */
+public class SyncRowMapper implements RowMapper<Map<String, Object>> {
+    private SyncRowSchema schema;
+
+    @Override
+    public Map<String, Object> mapRow(ResultSet rs, int rowNum) throws SQLException {
+        if (schema == null) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            String[] columns = new String[metaData.getColumnCount()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = JdbcUtils.lookupColumnName(metaData, i + 1);
+            }
+            schema = new SyncRowSchema(columns);
+        }
+        Object[] values = new Object[schema.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = JdbcUtils.getResultSetValue(rs, schema.getLabelIndex(i) + 1);
+        }
+        return new SyncRow(schema, values);
+    }
+}
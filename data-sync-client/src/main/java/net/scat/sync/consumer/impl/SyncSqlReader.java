@@ -1,112 +1,642 @@
 package net.scat.sync.consumer.impl;
 
-import com.google.common.collect.ImmutableMap;
+import com.alibaba.fastjson.JSON;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.DataChangeEventObserver;
+import net.scat.sync.client.config.SyncClientProperties;
+import net.scat.sync.consumer.base.SyncBatchHandler;
 import net.scat.sync.consumer.base.SyncReader;
 import net.scat.sync.enums.DataChangeEventType;
 import net.scat.sync.model.DataChangeEvent;
+import net.scat.sync.model.SyncLookupConfig;
 import net.scat.sync.model.SyncSqlReaderConfig;
+import net.scat.sync.utils.SyncMetrics;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.beans.BeansException;
-import org.springframework.context.ApplicationContext;
-import org.springframework.context.ApplicationContextAware;
-import org.springframework.jdbc.core.ColumnMapRowMapper;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import javax.annotation.PostConstruct;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 @Component
 @Slf4j
-public class SyncSqlReader implements ApplicationContextAware, SyncReader<SyncSqlReaderConfig> {
-    private static Map<String, JdbcTemplate> dbToTemplateMap;
+@RequiredArgsConstructor
+public class SyncSqlReader implements SyncReader<SyncSqlReaderConfig>, DataChangeEventObserver {
+    private static final String COUNT_SQL_PREFIX = "select count(*) from (";
+    private static final String COUNT_SQL_SUFFIX = ") as a";
+    private static final String PAGE_SQL_PREFIX = "select * from (";
+    private static final String PAGE_SQL_SUFFIX = ") as a limit ?,?";
+    private final SyncClientProperties properties;
+    private final SyncDataSourceRouter dataSourceRouter;
+    /**
+     * 配置 -> 配置加载时预处理的结果，配置刷新后旧配置被回收时自动移除
+     */
+    private final ConcurrentMap<SyncSqlReaderConfig, PreparedConfig> preparedConfigs = new MapMaker().weakKeys().makeMap();
+    /**
+     * 配置id -> 维表 -> 该配置查询该维表的维表查询，配置重新加载时整体替换
+     */
+    private final ConcurrentMap<Integer, Map<String, Set<LookupTarget>>> configLookupTargets = new ConcurrentHashMap<>();
+    /**
+     * 维表 -> 查询该维表的维表查询，用于按变更事件使缓存失效；由各配置的维表查询汇总，配置加载时重建
+     */
+    private volatile Map<String, Set<LookupTarget>> lookupTargets = Collections.emptyMap();
+    /**
+     * 维表 -> 缓存失效次数，查询期间维表有变更时，查询结果不放入缓存
+     */
+    private final ConcurrentMap<String, AtomicLong> lookupGenerations = new ConcurrentHashMap<>();
+    private Cache<LookupKey, Map<String, Object>> lookupCache;
+
+    @PostConstruct
+    public void init() {
+        lookupCache = CacheBuilder.newBuilder()
+                .maximumSize(properties.getReader().getLookupCacheSize())
+                .recordStats()
+                .build();
+        SyncMetrics.counter("sql.lookup.cache.hits", lookupCache, cache -> cache.stats().hitCount());
+        SyncMetrics.counter("sql.lookup.cache.misses", lookupCache, cache -> cache.stats().missCount());
+        SyncMetrics.counter("sql.lookup.cache.evictions", lookupCache, cache -> cache.stats().evictionCount());
+    }
+
+    /**
+     * 维表查询缓存的命中率等统计
+     */
+    public CacheStats getLookupCacheStats() {
+        return lookupCache.stats();
+    }
+
+    @Override
+    public void prepare(SyncSqlReaderConfig config) {
+        PreparedConfig prepared = new PreparedConfig();
+        prepared.wholeSql = parseSql(config, "query whole sql", config.getQueryWholeSql());
+        prepared.deleteSql = parseSql(config, "query delete sql", config.getQueryDeleteSql());
+        prepared.updateSql = parseSql(config, "query update sql", config.getQueryUpdateSql());
+        prepared.batchSql = parseSql(config, "query batch sql", config.getQueryBatchSql());
+        if (prepared.batchSql != null && (prepared.batchSql.getParamNames().size() != 1 || StringUtils.isBlank(config.getBatchKeyName()))) {
+            throw new IllegalArgumentException("Query batch sql must have exactly one parameter and batch key name can not be blank, readerConfig id=" + config.getId());
+        }
+        if (config.getEventSourced() != null && config.getEventSourced() == 1 && config.getIsMainTable() == 1) {
+            if (StringUtils.isNotBlank(config.getEventFieldMapping())) {
+                prepared.eventProjection = SqlProjection.parseMapping(config.getEventFieldMapping());
+                prepared.queryJoinedFields = StringUtils.isNotBlank(config.getQueryWholeSql());
+            } else {
+                prepared.eventProjection = SqlProjection.analyze(config.getQueryWholeSql(), config.getTable());
+                if (prepared.eventProjection == null) {
+                    log.warn("Query whole sql is not a simple single table projection, event sourced is disabled, readerConfig id={}",
+                            config.getId());
+                }
+            }
+        }
+        if (config.getIsMainTable() == 1) {
+            if (StringUtils.isNotBlank(config.getEventFieldMapping())) {
+                prepared.changeProjection = SqlProjection.parseMapping(config.getEventFieldMapping());
+                // 映射外的字段可能用于关联查询
+                prepared.changeProjectionComplete = StringUtils.isBlank(config.getQueryWholeSql());
+            } else {
+                prepared.changeProjection = SqlProjection.analyze(config.getQueryWholeSql(), config.getTable());
+                prepared.changeProjectionComplete = true;
+            }
+        }
+        Map<String, Set<LookupTarget>> targets = new HashMap<>();
+        if (StringUtils.isNotBlank(config.getLookupConfig())) {
+            prepared.lookups = new ArrayList<>();
+            for (SyncLookupConfig lookup : JSON.parseArray(config.getLookupConfig(), SyncLookupConfig.class)) {
+                if (StringUtils.isAnyBlank(lookup.getTable(), lookup.getKeyName(), lookup.getKeyColumn(), lookup.getSql())) {
+                    throw new IllegalArgumentException("Lookup config table, keyName, keyColumn and sql can not be blank, readerConfig id=" + config.getId());
+                }
+                prepared.lookups.add(new PreparedLookup(lookup, parseSql(config, "lookup sql", lookup.getSql())));
+                targets.computeIfAbsent(lookup.getTable(), s -> new HashSet<>())
+                        .add(new LookupTarget(lookup.getSql(), lookup.getKeyColumn()));
+            }
+        }
+        replaceLookupTargets(config.getId(), targets);
+        preparedConfigs.put(config, prepared);
+    }
+
+    /**
+     * 替换配置的维表查询并重建维表索引，配置修改或去掉维表查询后，旧的查询不再用于缓存失效
+     */
+    private synchronized void replaceLookupTargets(Integer configId, Map<String, Set<LookupTarget>> targets) {
+        if (targets.isEmpty()) {
+            configLookupTargets.remove(configId);
+        } else {
+            configLookupTargets.put(configId, targets);
+        }
+        Map<String, Set<LookupTarget>> index = new HashMap<>();
+        for (Map<String, Set<LookupTarget>> tableTargets : configLookupTargets.values()) {
+            tableTargets.forEach((table, tableTarget) -> index.computeIfAbsent(table, s -> new HashSet<>()).addAll(tableTarget));
+        }
+        lookupTargets = index;
+    }
+
+    private SqlTemplate parseSql(SyncSqlReaderConfig config, String name, String sql) {
+        try {
+            return SqlTemplate.parse(sql);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Invalid %s, readerConfig id=%s, %s", name, config.getId(), e.getMessage()), e);
+        }
+    }
+
+    /**
+     * 维表有变更时，按变更前后的关联键值使缓存失效
+     */
+    @Override
+    public void observe(DataChangeEvent event) {
+        String table = event.getMetaData().getDb() + "." + event.getMetaData().getTable();
+        Set<LookupTarget> targets = lookupTargets.get(table);
+        if (CollectionUtils.isEmpty(targets)) {
+            return;
+        }
+        lookupGenerations.computeIfAbsent(table, s -> new AtomicLong()).incrementAndGet();
+        for (LookupTarget target : targets) {
+            for (DataChangeEvent.Entity entity : Arrays.asList(event.getBefore(), event.getAfter())) {
+                if (entity == null) {
+                    continue;
+                }
+                DataChangeEvent.FieldData field = entity.getFields().get(target.getKeyColumn());
+                if (field != null && field.getValue() != null) {
+                    lookupCache.invalidate(new LookupKey(table, target.getSql(), String.valueOf(field.getValue())));
+                }
+            }
+        }
+    }
+
+    /**
+     * 按维表查询配置补充数据，优先从缓存获取
+     */
+    private List<Map<String, Object>> applyLookups(SyncSqlReaderConfig config, List<Map<String, Object>> data) {
+        List<PreparedLookup> lookups = getPrepared(config).lookups;
+        if (CollectionUtils.isEmpty(lookups) || CollectionUtils.isEmpty(data)) {
+            return data;
+        }
+        for (Map<String, Object> datum : data) {
+            for (PreparedLookup lookup : lookups) {
+                Object keyValue = datum.get(lookup.getConfig().getKeyName());
+                if (keyValue != null) {
+                    datum.putAll(lookup(lookup, keyValue));
+                }
+            }
+        }
+        return data;
+    }
+
+    private Map<String, Object> lookup(PreparedLookup preparedLookup, Object keyValue) {
+        SyncLookupConfig lookup = preparedLookup.getConfig();
+        LookupKey key = new LookupKey(lookup.getTable(), lookup.getSql(), String.valueOf(keyValue));
+        Map<String, Object> cached = lookupCache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        AtomicLong generation = lookupGenerations.computeIfAbsent(lookup.getTable(), s -> new AtomicLong());
+        long startGeneration = generation.get();
+        // 维表查询结果会被缓存，读主库，避免缓存从库的旧数据
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(StringUtils.substringBefore(lookup.getTable(), "."));
+        SqlTemplate template = preparedLookup.getTemplate();
+        List<Map<String, Object>> result = jdbcTemplate.query(template.getSql(),
+                template.bind(name -> name.equals(lookup.getKeyName()) ? keyValue : null), new SyncRowMapper());
+        Map<String, Object> value = CollectionUtils.isEmpty(result) ? Collections.emptyMap() : result.get(0);
+        if (generation.get() == startGeneration) {
+            lookupCache.put(key, value);
+        }
+        return value;
+    }
+
+    private PreparedConfig getPrepared(SyncSqlReaderConfig config) {
+        PreparedConfig prepared = preparedConfigs.get(config);
+        if (prepared == null) {
+            prepare(config);
+            prepared = preparedConfigs.get(config);
+        }
+        return prepared;
+    }
+
+    /**
+     * 主表更新时，按配置的字段映射或单表查询sql的投影，由事件前后数据得到变更的文档字段；
+     * 变更字段是整条查询sql的参数（如关联查询的关联键）或维表查询的关联键时，需要整条更新
+     */
+    @Override
+    public Map<String, Object> getChangedData(SyncSqlReaderConfig config, DataChangeEvent event) {
+        PreparedConfig prepared = getPrepared(config);
+        if (prepared.changeProjection == null || event.getEventType() != DataChangeEventType.UPDATE) {
+            return null;
+        }
+        Map<String, Object> changes = prepared.changeProjection.projectChanges(event, prepared.changeProjectionComplete,
+                prepared.wholeSql == null ? Collections.emptyList() : prepared.wholeSql.getParamNames());
+        if (changes == null || CollectionUtils.isEmpty(prepared.lookups)) {
+            return changes;
+        }
+        for (PreparedLookup lookup : prepared.lookups) {
+            if (changes.containsKey(lookup.getConfig().getKeyName())) {
+                return null;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 以配置id、sql模板及绑定参数作为读取标识；由事件直接生成文档时，结果取决于事件数据，不做合并
+     */
+    @Override
+    public String getReadKey(SyncSqlReaderConfig config, DataChangeEvent event) {
+        if (getPrepared(config).eventProjection != null && event.getEventType() != DataChangeEventType.DELETE) {
+            return null;
+        }
+        return config.getId() + ":" + event.getEventType() + ":" + Arrays.toString(getWholeParams(event, getWholeSql(config, event)));
+    }
 
     @Override
     public List<Map<String, Object>> getWholeData(SyncSqlReaderConfig config, Object primaryKey, DataChangeEvent event) {
-        JdbcTemplate jdbcTemplate = dbToTemplateMap.get(config.getDb());
-        return jdbcTemplate.query(getQueryWholeSql(config, event), new ColumnMapRowMapper());
+        PreparedConfig prepared = getPrepared(config);
+        Map<String, Object> document = null;
+        if (prepared.eventProjection != null && event.getEventType() != DataChangeEventType.DELETE) {
+            // 直接由变更后数据生成文档，省去一次数据库查询
+            document = prepared.eventProjection.project(event);
+            if (document != null && !prepared.queryJoinedFields) {
+                return applyLookups(config, Collections.singletonList(document));
+            }
+        }
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(config.getDb(), event.getTimestamp());
+        SqlTemplate template = getWholeSql(config, event);
+        List<Map<String, Object>> data = timed(config, "whole",
+                () -> jdbcTemplate.query(template.getSql(), getWholeParams(event, template), new SyncRowMapper()));
+        if (document == null) {
+            return applyLookups(config, data);
+        }
+        // sql只查询关联字段，与事件数据合并；关联不到数据时仍以事件数据生成文档
+        if (!CollectionUtils.isEmpty(data)) {
+            document.putAll(data.get(0));
+        }
+        return applyLookups(config, Collections.singletonList(document));
+    }
+
+    /**
+     * 设置了批量查询sql，且需要查询数据库时支持批量读取
+     */
+    @Override
+    public boolean supportBatch(SyncSqlReaderConfig config, DataChangeEvent event) {
+        PreparedConfig prepared = getPrepared(config);
+        return prepared.batchSql != null && prepared.eventProjection == null && event.getEventType() != DataChangeEventType.DELETE;
+    }
+
+    /**
+     * 按批量查询sql的参数从事件中取key，去重后展开为多值查询，超出maxBatchKeys时拆分为多次查询，
+     * 查询结果按batchKeyName字段拆分到各个事件，key相同的事件共享同一结果；
+     * 没有匹配到数据的事件不放入结果，由调用方逐条查询
+     */
+    @Override
+    public Map<DataChangeEvent, List<Map<String, Object>>> getBatchWholeData(SyncSqlReaderConfig config, List<DataChangeEvent> events) {
+        PreparedConfig prepared = getPrepared(config);
+        SqlTemplate template = requireTemplate(prepared.batchSql, "query batch sql", config);
+        String paramName = template.getParamNames().get(0);
+        Map<String, Object> keyValues = new LinkedHashMap<>();
+        Map<String, List<DataChangeEvent>> keyToEvents = new HashMap<>();
+        for (DataChangeEvent event : events) {
+            DataChangeEvent.FieldData field = event.getAfter() == null ? null : event.getAfter().getFields().get(paramName);
+            if (field == null || field.getValue() == null) {
+                continue;
+            }
+            Object value = SqlTemplate.toJdbcValue(field.getValue());
+            String key = toBatchKey(value);
+            keyValues.putIfAbsent(key, value);
+            keyToEvents.computeIfAbsent(key, k -> new ArrayList<>()).add(event);
+        }
+        Map<DataChangeEvent, List<Map<String, Object>>> result = new IdentityHashMap<>();
+        if (keyValues.isEmpty()) {
+            return result;
+        }
+        Map<String, List<Map<String, Object>>> keyToData = new HashMap<>();
+        for (Map<String, Object> datum : getWholeDataByKeys(config, new ArrayList<>(keyValues.values()), getLatestTimestamp(events))) {
+            keyToData.computeIfAbsent(toBatchKey(datum.get(config.getBatchKeyName())), k -> new ArrayList<>()).add(datum);
+        }
+        for (Map.Entry<String, List<DataChangeEvent>> entry : keyToEvents.entrySet()) {
+            List<Map<String, Object>> data = keyToData.get(entry.getKey());
+            if (data == null) {
+                continue;
+            }
+            for (DataChangeEvent event : entry.getValue()) {
+                result.put(event, data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 事件中的key与查询结果中的key统一格式后再匹配：数值不区分类型及小数位（1、1L、1.0），字符串不区分大小写（与MySQL默认排序规则一致）
+     */
+    private static String toBatchKey(Object value) {
+        value = SqlTemplate.toJdbcValue(value);
+        if (value instanceof Number) {
+            try {
+                BigDecimal decimal = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+                return decimal.compareTo(BigDecimal.ZERO) == 0 ? "0" : decimal.stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                return value.toString();
+            }
+        }
+        if (value instanceof String) {
+            return ((String) value).toLowerCase(Locale.ROOT);
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * 按key批量查询整条数据，超出maxBatchKeys时拆分为多次查询
+     * @param timestamp 需要读到的数据时间，从库未应用到该时间时读主库
+     */
+    public List<Map<String, Object>> getWholeDataByKeys(SyncSqlReaderConfig config, List<Object> keys, Date timestamp) {
+        SqlTemplate template = requireTemplate(getPrepared(config).batchSql, "query batch sql", config);
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(config.getDb(), timestamp);
+        List<Map<String, Object>> result = new ArrayList<>(keys.size());
+        for (List<Object> partition : Lists.partition(keys, properties.getReader().getMaxBatchKeys())) {
+            Object[] params = new Object[partition.size()];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = SqlTemplate.toJdbcValue(partition.get(i));
+            }
+            result.addAll(applyLookups(config, timed(config, "batch",
+                    () -> jdbcTemplate.query(template.expand(params.length).getSql(), params, new SyncRowMapper()))));
+        }
+        return result;
+    }
+
+    /**
+     * 流式读取主表key在[start, end)范围内的key，按key排序，每读满batchSize个回调一次handler；
+     * key字段为批量查询sql的参数名
+     * @param timestamp 需要读到的数据时间，从库未应用到该时间时读主库
+     */
+    public void streamKeys(SyncSqlReaderConfig config, long start, long end, Date timestamp, int batchSize,
+                           KeyBatchHandler handler) throws Exception {
+        String keyColumn = getBatchKeyColumn(config);
+        if (keyColumn == null) {
+            throw new IllegalStateException("query batch sql has not been set, readerConfig id=" + config.getId());
+        }
+        String sql = String.format("select `%s` from `%s` where `%s` >= ? and `%s` < ? order by `%s`",
+                keyColumn, config.getTable(), keyColumn, keyColumn, keyColumn);
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(config.getDb(), timestamp);
+        List<Object> keys = new ArrayList<>(batchSize);
+        try {
+            jdbcTemplate.query(con -> {
+                PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(properties.getReader().getStreamFetchSize());
+                new ArgumentPreparedStatementSetter(new Object[]{start, end}).setValues(statement);
+                return statement;
+            }, (RowCallbackHandler) rs -> {
+                keys.add(rs.getObject(1));
+                if (keys.size() >= batchSize) {
+                    try {
+                        handler.handle(new ArrayList<>(keys));
+                    } catch (Exception e) {
+                        throw new BatchHandleException(e);
+                    }
+                    keys.clear();
+                }
+            });
+        } catch (BatchHandleException e) {
+            throw e.getCause();
+        }
+        if (!keys.isEmpty()) {
+            handler.handle(keys);
+        }
+    }
+
+    @FunctionalInterface
+    public interface KeyBatchHandler {
+        void handle(List<Object> keys) throws Exception;
+    }
+
+    /**
+     * 源库主库的当前时间，与变更事件的时间同一时钟
+     */
+    public Date getDbTime(SyncSqlReaderConfig config) {
+        return dataSourceRouter.getTemplate(config.getDb()).queryForObject("select now()", Date.class);
+    }
+
+    /**
+     * 主表key的最小值、最大值，表为空时返回null
+     */
+    public long[] getKeyRange(SyncSqlReaderConfig config) {
+        String keyColumn = getBatchKeyColumn(config);
+        if (keyColumn == null) {
+            throw new IllegalStateException("query batch sql has not been set, readerConfig id=" + config.getId());
+        }
+        Map<String, Object> range = dataSourceRouter.getTemplate(config.getDb()).queryForMap(
+                String.format("select min(`%s`) as min_key, max(`%s`) as max_key from `%s`", keyColumn, keyColumn, config.getTable()));
+        if (range.get("min_key") == null) {
+            return null;
+        }
+        return new long[]{((Number) range.get("min_key")).longValue(), ((Number) range.get("max_key")).longValue()};
+    }
+
+    /**
+     * 批量查询sql的参数名，即批量查询按其取值的表字段，未设置批量查询sql时返回null
+     */
+    public String getBatchKeyColumn(SyncSqlReaderConfig config) {
+        SqlTemplate template = getPrepared(config).batchSql;
+        return template == null ? null : template.getParamNames().get(0);
     }
 
     @Override
     public Map<String, Object> getUpdateData(SyncSqlReaderConfig config, Object primaryKey, DataChangeEvent event) {
-        JdbcTemplate jdbcTemplate = dbToTemplateMap.get(config.getDb());
-        List<Map<String, Object>> resultList = jdbcTemplate.query(
-                buildSql(config.getQueryUpdateSql(), event.getAfter().getFields()), new ColumnMapRowMapper());
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(config.getDb(), event.getTimestamp());
+        SqlTemplate template = requireTemplate(getPrepared(config).updateSql, "query update sql", config);
+        List<Map<String, Object>> resultList = timed(config, "update", () -> jdbcTemplate.query(template.getSql(),
+                template.bind(event.getAfter().getFields()), new SyncRowMapper()));
         if (CollectionUtils.isEmpty(resultList)) {
             return Collections.emptyMap();
         }
-        return resultList.get(0);
+        return applyLookups(config, resultList).get(0);
     }
 
     @Override
     public Integer countWholeData(SyncSqlReaderConfig config, Object primaryKey, DataChangeEvent event) {
-        JdbcTemplate jdbcTemplate = dbToTemplateMap.get(config.getDb());
-        return jdbcTemplate.queryForObject(getCountSql(getQueryWholeSql(config, event)), Integer.class);
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(config.getDb(), event.getTimestamp());
+        SqlTemplate template = getWholeSql(config, event);
+        return timed(config, "count", () -> jdbcTemplate.queryForObject(template.wrap(COUNT_SQL_PREFIX, COUNT_SQL_SUFFIX).getSql(),
+                getWholeParams(event, template), Integer.class));
     }
 
     @Override
     public List<Map<String, Object>> getPageOfWholeData(SyncSqlReaderConfig config, Object primaryKey, DataChangeEvent event, int start, int limit) {
-        JdbcTemplate jdbcTemplate = dbToTemplateMap.get(config.getDb());
-        return jdbcTemplate.query(getPageSql(getQueryWholeSql(config, event), start, limit), new ColumnMapRowMapper());
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(config.getDb(), event.getTimestamp());
+        SqlTemplate template = getWholeSql(config, event);
+        Object[] params = getWholeParams(event, template);
+        Object[] pageParams = Arrays.copyOf(params, params.length + 2);
+        pageParams[params.length] = start;
+        pageParams[params.length + 1] = limit;
+        return applyLookups(config, timed(config, "page", () -> jdbcTemplate.query(template.wrap(PAGE_SQL_PREFIX, PAGE_SQL_SUFFIX).getSql(),
+                pageParams, new SyncRowMapper())));
     }
 
-    private String getQueryWholeSql(SyncSqlReaderConfig config, DataChangeEvent event) {
-        String sql = config.getQueryWholeSql();
-        if (event.getEventType() == DataChangeEventType.DELETE) {
-            sql = config.getQueryDeleteSql();
+    /**
+     * 统计单次查询的耗时，按配置及查询类型区分；流式读取包含回调的处理时间，不统计
+     */
+    private <T> T timed(SyncSqlReaderConfig config, String type, Supplier<T> query) {
+        long startNanos = System.nanoTime();
+        try {
+            return query.get();
+        } finally {
+            SyncMetrics.recordSince(startNanos, "sql.read", "config", String.valueOf(config.getId()),
+                    "table", config.getDb() + "." + config.getTable(), "type", type);
         }
+    }
 
-        Map<String, DataChangeEvent.FieldData> params;
-        if (event.getEventType() == DataChangeEventType.DELETE) {
-            params = event.getBefore().getFields();
-        } else {
-            params = event.getAfter().getFields();
+    /**
+     * 单次查询，使用只进游标流式读取，避免count及分页查询反复执行子查询，也避免分页过程中数据变化导致的不一致；
+     * 注意handler处理耗时过长时，可能超出MySQL的net_write_timeout
+     */
+    @Override
+    public void streamWholeData(SyncSqlReaderConfig config, Object primaryKey, DataChangeEvent event, int batchSize,
+                                SyncBatchHandler handler) throws Exception {
+        JdbcTemplate jdbcTemplate = dataSourceRouter.getTemplate(config.getDb(), event.getTimestamp());
+        SqlTemplate template = getWholeSql(config, event);
+        Object[] params = getWholeParams(event, template);
+        SyncRowMapper rowMapper = new SyncRowMapper();
+        List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+        try {
+            jdbcTemplate.query(con -> {
+                PreparedStatement statement = con.prepareStatement(template.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(properties.getReader().getStreamFetchSize());
+                new ArgumentPreparedStatementSetter(params).setValues(statement);
+                return statement;
+            }, (RowCallbackHandler) rs -> {
+                batch.add(rowMapper.mapRow(rs, batch.size()));
+                if (batch.size() >= batchSize) {
+                    handleBatch(config, handler, batch);
+                }
+            });
+        } catch (BatchHandleException e) {
+            throw e.getCause();
+        }
+        if (!batch.isEmpty()) {
+            handler.handle(applyLookups(config, new ArrayList<>(batch)));
         }
-        return buildSql(sql, params);
     }
 
-    private String buildSql(String sql, Map<String, DataChangeEvent.FieldData> params) {
-        if (StringUtils.isBlank(sql) || CollectionUtils.isEmpty(params)) {
-            return sql;
+    private void handleBatch(SyncSqlReaderConfig config, SyncBatchHandler handler, List<Map<String, Object>> batch) {
+        try {
+            handler.handle(applyLookups(config, new ArrayList<>(batch)));
+        } catch (Exception e) {
+            throw new BatchHandleException(e);
         }
-        for (Map.Entry<String, DataChangeEvent.FieldData> entry : params.entrySet()) {
-            sql = sql.replaceAll("#\\{"+ entry.getKey() +"}", getSqlValue(entry.getValue().getValue()));
+        batch.clear();
+    }
+
+    /**
+     * 包装流式读取回调中handler抛出的异常，读取结束后还原
+     */
+    private static class BatchHandleException extends RuntimeException {
+        BatchHandleException(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
         }
-        return sql;
     }
 
-    private String getSqlValue(Object value) {
-        return String.valueOf(value);
+    private static class PreparedConfig {
+        /**
+         * 主表事件直接生成文档的字段投影，为空时不启用
+         */
+        private SqlProjection eventProjection;
+        /**
+         * 由事件生成文档后，是否还需要查询sql获取关联字段
+         */
+        private boolean queryJoinedFields;
+        /**
+         * 主表更新时，由事件得到变更字段的投影，为空时不做局部更新
+         */
+        private SqlProjection changeProjection;
+        /**
+         * 投影是否覆盖了文档依赖的全部字段，否时投影外的字段变更需要整条更新
+         */
+        private boolean changeProjectionComplete;
+        /**
+         * 维表查询
+         */
+        private List<PreparedLookup> lookups;
+        private SqlTemplate wholeSql;
+        private SqlTemplate deleteSql;
+        private SqlTemplate updateSql;
+        private SqlTemplate batchSql;
     }
 
-    private String getCountSql(String sql) {
-        return "select count(*) from (" + sql + ") as a";
+    @Getter
+    @AllArgsConstructor
+    private static class PreparedLookup {
+        private final SyncLookupConfig config;
+        private final SqlTemplate template;
     }
 
-    private String getPageSql(String sql, int start, int limit) {
-        return "select * from ("+ sql +") as a limit "+ start +"," + limit;
+    @Getter
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class LookupTarget {
+        private final String sql;
+        private final String keyColumn;
     }
 
-    @Override
-    public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
-        if (dbToTemplateMap != null) {
-            return;
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class LookupKey {
+        private final String table;
+        private final String sql;
+        private final String keyValue;
+    }
+
+    private SqlTemplate getWholeSql(SyncSqlReaderConfig config, DataChangeEvent event) {
+        PreparedConfig prepared = getPrepared(config);
+        if (event.getEventType() == DataChangeEventType.DELETE) {
+            return requireTemplate(prepared.deleteSql, "query delete sql", config);
         }
-        Map<String, JdbcTemplate> templates = applicationContext.getBeansOfType(JdbcTemplate.class);
-        if (CollectionUtils.isEmpty(templates)) {
-            log.error("There are`t any jdbcTemplate has been init.");
-            return;
+        return requireTemplate(prepared.wholeSql, "query whole sql", config);
+    }
+
+    private Object[] getWholeParams(DataChangeEvent event, SqlTemplate template) {
+        if (event.getEventType() == DataChangeEventType.DELETE) {
+            return template.bind(event.getBefore().getFields());
+        }
+        return template.bind(event.getAfter().getFields());
+    }
+
+    private SqlTemplate requireTemplate(SqlTemplate template, String name, SyncSqlReaderConfig config) {
+        if (template == null) {
+            throw new IllegalStateException(name + " has not been set, readerConfig id=" + config.getId());
         }
+        return template;
+    }
 
-        ImmutableMap.Builder<String, JdbcTemplate> builder = new ImmutableMap.Builder<>();
-        builder.put("mall_goods", templates.get("mallJdbcTemplate"));
-        builder.put("mall_health", templates.get("mallJdbcTemplate"));
-        builder.put("mall_order", templates.get("mallJdbcTemplate"));
-        builder.put("wbnetmeeting", templates.get("emktJdbcTemplate"));
-        builder.put("wbcms", templates.get("primaryJdbcTemplate"));
-        dbToTemplateMap = builder.build();
+    /**
+     * 一批事件中最新的事件时间，有事件缺少时间时返回null
+     */
+    private Date getLatestTimestamp(List<DataChangeEvent> events) {
+        Date latest = null;
+        for (DataChangeEvent event : events) {
+            if (event.getTimestamp() == null) {
+                return null;
+            }
+            if (latest == null || event.getTimestamp().after(latest)) {
+                latest = event.getTimestamp();
+            }
+        }
+        return latest;
     }
 }
@@ -0,0 +1,376 @@
+package net.scat.sync.consumer.impl;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.scat.sync.client.config.SyncClientProperties;
+import net.scat.sync.consumer.base.AbstractSyncConsumer.SyncConfigPair;
+import net.scat.sync.model.SyncEsWriterConfig;
+import net.scat.sync.model.SyncSqlReaderConfig;
+import net.scat.sync.utils.DateUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据库与es的一致性校验及修复：按主表key范围并行校验，两边分别计算范围内文档的校验和，
+ * 不一致时细分范围递归校验，范围足够小时逐条比较文档，只重新同步不一致的文档。
+ * 文档只比较数据库查询得到的字段（es中从表局部更新的字段不参与比较），字段值统一转为字符串比较；
+ * 数据库与es的读取分别限速，可持续在线上运行。要求配置为主表且设置了批量查询sql，batch_key_name对应的es字段可按范围查询
+ */
+@Component
+@Slf4j
+public class SyncVerifyService {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private final SyncEsBySqlConsumer consumer;
+    private final SyncSqlReader syncSqlReader;
+    private final SyncEsWriter syncEsWriter;
+    private final RestHighLevelClient esClient;
+    private final SyncClientProperties properties;
+    private final RateLimiter sqlLimiter;
+    private final RateLimiter esLimiter;
+    private ThreadPoolExecutor executor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SyncVerifyService_scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SyncVerifyService(SyncEsBySqlConsumer consumer, SyncSqlReader syncSqlReader, SyncEsWriter syncEsWriter,
+                             RestHighLevelClient esClient, SyncClientProperties properties) {
+        this.consumer = consumer;
+        this.syncSqlReader = syncSqlReader;
+        this.syncEsWriter = syncEsWriter;
+        this.esClient = esClient;
+        this.properties = properties;
+        this.sqlLimiter = RateLimiter.create(properties.getVerifier().getMaxDocsPerSecond());
+        this.esLimiter = RateLimiter.create(properties.getVerifier().getMaxDocsPerSecond());
+    }
+
+    @PostConstruct
+    public void init() {
+        SyncClientProperties.Verifier verifier = properties.getVerifier();
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(verifier.getThreads(), verifier.getThreads(), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "SyncVerifyService_worker_" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        if (!CollectionUtils.isEmpty(verifier.getReaderConfIds())) {
+            scheduler.scheduleWithFixedDelay(this::verifyScheduled, verifier.getIntervalSeconds(),
+                    verifier.getIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void verifyScheduled() {
+        for (Integer readerConfId : properties.getVerifier().getReaderConfIds()) {
+            try {
+                VerifyResult result = verify(readerConfId, true).get();
+                log.info("Verify finished, readerConfig id={}, result={}", readerConfId, result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Verify error, readerConfig id=" + readerConfId, e);
+            }
+        }
+    }
+
+    /**
+     * 校验一个配置的全部数据
+     * @param repair 是否修复不一致的文档
+     */
+    public CompletableFuture<VerifyResult> verify(Integer readerConfId, boolean repair) {
+        SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair = getConfigPair(readerConfId);
+        long[] range = syncSqlReader.getKeyRange(pair.getReader());
+        if (range == null) {
+            return CompletableFuture.completedFuture(new VerifyResult());
+        }
+        return verify(readerConfId, range[0], range[1] + 1, repair);
+    }
+
+    /**
+     * 校验主表key在[start, end)范围内的数据
+     */
+    public CompletableFuture<VerifyResult> verify(Integer readerConfId, long start, long end, boolean repair) {
+        SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair = getConfigPair(readerConfId);
+        VerifyResult result = new VerifyResult();
+        // 读取到校验开始时的数据即可，之后的变更由增量同步处理
+        Date startTime = new Date();
+        long chunkSize = properties.getVerifier().getChunkSize();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (long chunkStart = start; chunkStart < end; chunkStart += chunkSize) {
+            long chunkEnd = Math.min(chunkStart + chunkSize, end);
+            long rangeStart = chunkStart;
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    verifyRange(pair, rangeStart, chunkEnd, startTime, repair, result);
+                } catch (Exception e) {
+                    result.failedRanges.incrementAndGet();
+                    log.error(String.format("Verify range error, readerConfig id=%s, range=[%s, %s)",
+                            readerConfId, rangeStart, chunkEnd), e);
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> result);
+    }
+
+    private SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> getConfigPair(Integer readerConfId) {
+        SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair = consumer.getConfigPair(readerConfId);
+        if (pair == null) {
+            throw new IllegalArgumentException("Can not find reader and writer config, readerConfig id=" + readerConfId);
+        }
+        if (pair.getReader().getIsMainTable() != 1 || syncSqlReader.getBatchKeyColumn(pair.getReader()) == null) {
+            throw new IllegalArgumentException("Verify requires main table config with query batch sql, readerConfig id=" + readerConfId);
+        }
+        return pair;
+    }
+
+    private void verifyRange(SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair, long start, long end,
+                             Date startTime, boolean repair, VerifyResult result) throws Exception {
+        SyncClientProperties.Verifier verifier = properties.getVerifier();
+        boolean leaf = end - start <= verifier.getLeafSize();
+        RangeDigest sqlDigest = digestSql(pair, start, end, startTime, leaf);
+        RangeDigest esDigest = digestEs(pair, start, end, sqlDigest.fields, leaf);
+        if (sqlDigest.matches(esDigest)) {
+            result.checkedDocs.addAndGet(sqlDigest.count);
+            return;
+        }
+        if (!leaf) {
+            long step = Math.max((end - start + verifier.getFanOut() - 1) / verifier.getFanOut(), 1);
+            for (long subStart = start; subStart < end; subStart += step) {
+                verifyRange(pair, subStart, Math.min(subStart + step, end), startTime, repair, result);
+            }
+            return;
+        }
+        result.checkedDocs.addAndGet(sqlDigest.count);
+        // 逐条比较，数据库中不存在或不一致的文档需要重新同步，只在es中存在的文档需要删除
+        Map<String, Object> repairKeys = new HashMap<>();
+        for (Map.Entry<String, DocDigest> entry : sqlDigest.docs.entrySet()) {
+            DocDigest esDoc = esDigest.docs.get(entry.getKey());
+            if (esDoc == null || esDoc.hash != entry.getValue().hash) {
+                repairKeys.put(entry.getKey(), entry.getValue().key);
+            }
+        }
+        Set<String> orphanIds = new HashSet<>();
+        for (Map.Entry<String, DocDigest> entry : esDigest.docs.entrySet()) {
+            if (!sqlDigest.docs.containsKey(entry.getKey())) {
+                orphanIds.add(entry.getKey());
+                if (entry.getValue().key != null) {
+                    repairKeys.put(entry.getKey(), entry.getValue().key);
+                }
+            }
+        }
+        Set<String> mismatched = new HashSet<>(repairKeys.keySet());
+        mismatched.addAll(orphanIds);
+        result.mismatchedDocs.addAndGet(mismatched.size());
+        log.warn("Verify found mismatched documents, readerConfig id={}, range=[{}, {}), mismatched={}, orphans={}",
+                pair.getReader().getId(), start, end, repairKeys.keySet(), orphanIds);
+        if (repair) {
+            repair(pair, repairKeys, orphanIds, result);
+        }
+    }
+
+    /**
+     * 从主库重新读取后写入；只在es中存在的文档，主库中仍读取不到时删除
+     */
+    private void repair(SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair, Map<String, Object> repairKeys,
+                        Set<String> orphanIds, VerifyResult result) throws Exception {
+        if (!repairKeys.isEmpty()) {
+            // es与缓存的写入内容已不一致，强制重写
+            syncEsWriter.invalidateHashes(pair.getWriter().getEsIndex());
+            List<Map<String, Object>> data = syncSqlReader.getWholeDataByKeys(pair.getReader(),
+                    new ArrayList<>(new LinkedHashSet<>(repairKeys.values())), new Date());
+            if (!data.isEmpty()) {
+                syncEsWriter.upsert(pair.getWriter(), data);
+                result.repairedDocs.addAndGet(data.size());
+            }
+            for (Map<String, Object> datum : data) {
+                orphanIds.remove(syncEsWriter.getDocumentId(pair.getWriter(), datum));
+            }
+        }
+        if (!orphanIds.isEmpty()) {
+            syncEsWriter.deleteByIds(pair.getWriter(), orphanIds);
+            result.deletedDocs.addAndGet(orphanIds.size());
+        }
+    }
+
+    private RangeDigest digestSql(SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair, long start, long end,
+                                  Date startTime, boolean collectDocs) throws Exception {
+        RangeDigest digest = new RangeDigest(collectDocs);
+        String keyName = pair.getReader().getBatchKeyName();
+        syncSqlReader.streamKeys(pair.getReader(), start, end, startTime, properties.getVerifier().getPageSize(), keys -> {
+            sqlLimiter.acquire(keys.size());
+            for (Map<String, Object> datum : syncSqlReader.getWholeDataByKeys(pair.getReader(), keys, startTime)) {
+                digest.fields.addAll(datum.keySet());
+                digest.add(syncEsWriter.getDocumentId(pair.getWriter(), datum), datum.get(keyName), hash(datum));
+            }
+        });
+        return digest;
+    }
+
+    /**
+     * 按batch_key_name字段范围查询es，search_after分页，只读取数据库查询得到的字段
+     */
+    private RangeDigest digestEs(SyncConfigPair<SyncSqlReaderConfig, SyncEsWriterConfig> pair, long start, long end,
+                                 Set<String> fields, boolean collectDocs) throws Exception {
+        RangeDigest digest = new RangeDigest(collectDocs);
+        SyncEsWriterConfig writerConfig = pair.getWriter();
+        String keyName = pair.getReader().getBatchKeyName();
+        Set<String> includes = new HashSet<>(fields);
+        includes.add(keyName);
+        int pageSize = properties.getVerifier().getPageSize();
+        Object[] searchAfter = null;
+        while (true) {
+            esLimiter.acquire(pageSize);
+            SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(QueryBuilders.rangeQuery(keyName).gte(start).lt(end))
+                    .sort(keyName, SortOrder.ASC)
+                    .size(pageSize)
+                    .fetchSource(includes.toArray(new String[0]), null);
+            if (searchAfter != null) {
+                source.searchAfter(searchAfter);
+            }
+            SearchRequest request = new SearchRequest(writerConfig.getEsIndex()).types(writerConfig.getEsType()).source(source);
+            if (StringUtils.isNotBlank(writerConfig.getEsRouting())) {
+                request.routing(writerConfig.getEsRouting());
+            }
+            SearchResponse response = esClient.search(request, RequestOptions.DEFAULT);
+            SearchHit[] hits = response.getHits().getHits();
+            for (SearchHit hit : hits) {
+                Map<String, Object> document = new HashMap<>(hit.getSourceAsMap());
+                Object key = document.get(keyName);
+                document.keySet().retainAll(fields);
+                digest.add(hit.getId(), key, hash(document));
+            }
+            if (hits.length < pageSize) {
+                return digest;
+            }
+            searchAfter = hits[hits.length - 1].getSortValues();
+        }
+    }
+
+    /**
+     * 文档的哈希，按字段名排序，忽略值为null的字段；数值统一为去掉末尾0的十进制，日期按写入es的格式
+     */
+    private long hash(Map<String, Object> document) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        for (String field : new TreeSet<>(document.keySet())) {
+            Object value = document.get(field);
+            if (value == null) {
+                continue;
+            }
+            hasher.putString(field, StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(normalize(value), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().asLong();
+    }
+
+    private String normalize(Object value) {
+        if (value instanceof Number) {
+            try {
+                BigDecimal decimal = new BigDecimal(value.toString()).stripTrailingZeros();
+                return decimal.signum() == 0 ? "0" : decimal.toPlainString();
+            } catch (NumberFormatException e) {
+                return value.toString();
+            }
+        }
+        if (value instanceof Date) {
+            return DateUtils.format((Date) value);
+        }
+        if (value instanceof Iterable) {
+            StringBuilder builder = new StringBuilder("[");
+            for (Object item : (Iterable<?>) value) {
+                builder.append(item == null ? "null" : normalize(item)).append(',');
+            }
+            return builder.append(']').toString();
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * 范围内文档的校验和：文档数 + 文档id与哈希组合后求和，与顺序无关
+     */
+    private static class RangeDigest {
+        private long count;
+        private long checksum;
+        private final Set<String> fields = new HashSet<>();
+        private final boolean collectDocs;
+        /**
+         * 文档id -> 文档摘要，只在逐条比较时收集
+         */
+        private final Map<String, DocDigest> docs = new HashMap<>();
+
+        private RangeDigest(boolean collectDocs) {
+            this.collectDocs = collectDocs;
+        }
+
+        private void add(String id, Object key, long hash) {
+            count++;
+            checksum += HASH_FUNCTION.newHasher().putString(id, StandardCharsets.UTF_8).putLong(hash).hash().asLong();
+            if (collectDocs) {
+                docs.put(id, new DocDigest(key, hash));
+            }
+        }
+
+        private boolean matches(RangeDigest other) {
+            return count == other.count && checksum == other.checksum;
+        }
+    }
+
+    private static class DocDigest {
+        private final Object key;
+        private final long hash;
+
+        private DocDigest(Object key, long hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * 校验结果统计
+     */
+    @Getter
+    public static class VerifyResult {
+        private final AtomicLong checkedDocs = new AtomicLong();
+        private final AtomicLong mismatchedDocs = new AtomicLong();
+        private final AtomicLong repairedDocs = new AtomicLong();
+        private final AtomicLong deletedDocs = new AtomicLong();
+        private final AtomicLong failedRanges = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return String.format("checked=%s, mismatched=%s, repaired=%s, deleted=%s, failedRanges=%s",
+                    checkedDocs, mismatchedDocs, repairedDocs, deletedDocs, failedRanges);
+        }
+    }
+}
@@ -2,9 +2,21 @@ package net.scat.sync.mapper;
 
 
 import net.scat.sync.model.SyncBaseConfig;
+import net.scat.sync.model.SyncConfigVersion;
 
+import java.util.Date;
 import java.util.List;
 
 public interface SyncBaseConfigMapper<T extends SyncBaseConfig>{
     List<T> selectAll();
+
+    /**
+     * 查询更新时间不早于updateTime的配置，包含已逻辑删除的配置
+     */
+    List<T> selectUpdatedSince(Date updateTime);
+
+    /**
+     * 查询配置版本，用于判断配置是否有变更
+     */
+    SyncConfigVersion selectVersion();
 }
@@ -0,0 +1,32 @@
+package net.scat.sync.mapper;
+
+import net.scat.sync.model.SyncBootstrapChunk;
+import net.scat.sync.model.SyncBootstrapTask;
+import org.apache.ibatis.annotations.*;
+
+import java.util.List;
+
+public interface SyncBootstrapMapper {
+    @Insert("insert into sync_bootstrap_task(reader_conf_id, group_id, target_index, chunk_size, start_time, status) \n" +
+            "values(#{readerConfId}, #{groupId}, #{targetIndex}, #{chunkSize}, #{startTime}, #{status})")
+    @Options(useGeneratedKeys = true, keyProperty = "id")
+    int insertTask(SyncBootstrapTask task);
+
+    @Insert("<script>insert into sync_bootstrap_chunk(task_id, range_start, range_end, status) values \n" +
+            "<foreach collection='chunks' item='chunk' separator=','>" +
+            "(#{chunk.taskId}, #{chunk.rangeStart}, #{chunk.rangeEnd}, #{chunk.status})" +
+            "</foreach></script>")
+    int insertChunks(@Param("chunks") List<SyncBootstrapChunk> chunks);
+
+    @Select("select * from sync_bootstrap_task where id = #{id}")
+    SyncBootstrapTask selectTask(@Param("id") Long id);
+
+    @Select("select * from sync_bootstrap_chunk where task_id = #{taskId} and status != 1 order by range_start")
+    List<SyncBootstrapChunk> selectUnfinishedChunks(@Param("taskId") Long taskId);
+
+    @Update("update sync_bootstrap_chunk set status = #{status}, row_count = #{rowCount}, error_msg = #{errorMsg} where id = #{id}")
+    int updateChunk(SyncBootstrapChunk chunk);
+
+    @Update("update sync_bootstrap_task set status = #{status} where id = #{id}")
+    int updateTaskStatus(@Param("id") Long id, @Param("status") Integer status);
+}
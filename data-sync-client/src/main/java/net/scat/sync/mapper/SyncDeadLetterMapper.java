@@ -0,0 +1,10 @@
+package net.scat.sync.mapper;
+
+import net.scat.sync.model.SyncDeadLetter;
+import org.apache.ibatis.annotations.Insert;
+
+public interface SyncDeadLetterMapper {
+    @Insert("insert into sync_dead_letter(es_index, doc_id, routing, op_type, source, status, attempts, error_msg) \n" +
+            "values(#{esIndex}, #{docId}, #{routing}, #{opType}, #{source}, #{status}, #{attempts}, #{errorMsg})")
+    int insert(SyncDeadLetter deadLetter);
+}
@@ -0,0 +1,28 @@
+package net.scat.sync.mapper;
+
+import net.scat.sync.model.SyncRebuildIndex;
+import org.apache.ibatis.annotations.*;
+
+import java.util.List;
+
+public interface SyncRebuildIndexMapper {
+    @Insert("insert into sync_rebuild_index(es_alias, target_index, task_id, status) \n" +
+            "values(#{esAlias}, #{targetIndex}, #{taskId}, #{status})")
+    @Options(useGeneratedKeys = true, keyProperty = "id")
+    int insert(SyncRebuildIndex rebuildIndex);
+
+    @Select("select * from sync_rebuild_index where status = 0")
+    List<SyncRebuildIndex> selectDualWriting();
+
+    @Select("select * from sync_rebuild_index where task_id = #{taskId}")
+    SyncRebuildIndex selectByTaskId(@Param("taskId") Long taskId);
+
+    @Update("update sync_rebuild_index set task_id = #{taskId} where id = #{id}")
+    int updateTaskId(@Param("id") Long id, @Param("taskId") Long taskId);
+
+    /**
+     * 只更新双写中的记录，已切换或已取消的不再变更
+     */
+    @Update("update sync_rebuild_index set status = #{status} where id = #{id} and status = 0")
+    int updateStatus(@Param("id") Long id, @Param("status") Integer status);
+}
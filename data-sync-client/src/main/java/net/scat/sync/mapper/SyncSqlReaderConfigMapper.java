@@ -1,15 +1,31 @@
 package net.scat.sync.mapper;
 
+import net.scat.sync.model.SyncConfigVersion;
 import net.scat.sync.model.SyncSqlReaderConfig;
+import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 
+import java.util.Date;
 import java.util.List;
 
 public interface SyncSqlReaderConfigMapper extends SyncBaseConfigMapper<SyncSqlReaderConfig> {
     @Select("select sbc.*, rc.base_conf_id,rc.query_whole_sql,rc.query_update_sql,rc.query_delete_sql \n" +
+            ",rc.event_sourced,rc.event_field_mapping,rc.lookup_config,rc.query_batch_sql,rc.batch_key_name \n" +
             "from sync_base_config sbc \n" +
             "inner join sync_sql_reader_config rc on rc.base_conf_id = sbc.id  \n" +
             "where sbc.is_del = 0")
     List<SyncSqlReaderConfig> selectAll();
 
+    @Select("select sbc.*, rc.base_conf_id,rc.query_whole_sql,rc.query_update_sql,rc.query_delete_sql \n" +
+            ",rc.event_sourced,rc.event_field_mapping,rc.lookup_config,rc.query_batch_sql,rc.batch_key_name \n" +
+            "from sync_base_config sbc \n" +
+            "inner join sync_sql_reader_config rc on rc.base_conf_id = sbc.id  \n" +
+            "where sbc.update_time >= #{updateTime} or rc.update_time >= #{updateTime}")
+    List<SyncSqlReaderConfig> selectUpdatedSince(@Param("updateTime") Date updateTime);
+
+    @Select("select count(*) as total, max(greatest(sbc.update_time, rc.update_time)) as last_update_time, now() as db_time, database() as db_name \n" +
+            "from sync_base_config sbc \n" +
+            "inner join sync_sql_reader_config rc on rc.base_conf_id = sbc.id")
+    SyncConfigVersion selectVersion();
+
 }
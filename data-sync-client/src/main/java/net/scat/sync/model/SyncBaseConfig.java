@@ -39,5 +39,9 @@ public class SyncBaseConfig {
      * 是否主表
      */
     private Integer isMainTable;
+    /**
+     * 是否删除，0 否，1 是
+     */
+    private Integer isDel;
 
 }
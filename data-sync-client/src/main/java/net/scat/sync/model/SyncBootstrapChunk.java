@@ -0,0 +1,25 @@
+package net.scat.sync.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 全量初始化分片，主键范围[rangeStart, rangeEnd)
+ */
+@Getter
+@Setter
+public class SyncBootstrapChunk {
+    private Long id;
+    private Long taskId;
+    private Long rangeStart;
+    private Long rangeEnd;
+    /**
+     * 状态，0 未完成，1 已完成，2 失败
+     */
+    private Integer status;
+    /**
+     * 写入的文档数
+     */
+    private Long rowCount;
+    private String errorMsg;
+}
@@ -0,0 +1,39 @@
+package net.scat.sync.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Date;
+
+/**
+ * 全量初始化任务，按主键范围拆分为多个分片
+ */
+@Getter
+@Setter
+public class SyncBootstrapTask {
+    private Long id;
+    /**
+     * 同步配置id
+     */
+    private Integer readerConfId;
+    /**
+     * 完成后重置消费位点的消费组，为空时不重置
+     */
+    private String groupId;
+    /**
+     * 写入的索引，为空时写入配置的索引；重建索引时为新建的索引
+     */
+    private String targetIndex;
+    /**
+     * 每个分片的主键范围大小
+     */
+    private Long chunkSize;
+    /**
+     * 任务开始时间，完成后增量同步从此时间重新消费
+     */
+    private Date startTime;
+    /**
+     * 状态，0 执行中，1 已完成，2 失败
+     */
+    private Integer status;
+}
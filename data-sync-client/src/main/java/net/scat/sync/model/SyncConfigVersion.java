@@ -0,0 +1,30 @@
+package net.scat.sync.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Date;
+
+/**
+ * 同步配置版本，配置数量或最近更新时间变化时，说明配置有变更
+ */
+@Getter
+@Setter
+public class SyncConfigVersion {
+    /**
+     * 配置总数，包含已逻辑删除的配置
+     */
+    private Long total;
+    /**
+     * 配置最近更新时间
+     */
+    private Date lastUpdateTime;
+    /**
+     * 查询时数据库的当前时间
+     */
+    private Date dbTime;
+    /**
+     * 配置所在的库名
+     */
+    private String dbName;
+}
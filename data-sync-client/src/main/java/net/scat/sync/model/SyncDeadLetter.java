@@ -0,0 +1,30 @@
+package net.scat.sync.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 不可重试或重试后仍失败的文档写入
+ */
+@Getter
+@Setter
+public class SyncDeadLetter {
+    private Long id;
+    private String esIndex;
+    private String docId;
+    private String routing;
+    /**
+     * 操作类型，index、create、update、delete
+     */
+    private String opType;
+    /**
+     * 写入的文档内容，删除时为空
+     */
+    private String source;
+    /**
+     * 失败的http状态码，请求整体失败时为0
+     */
+    private Integer status;
+    private Integer attempts;
+    private String errorMsg;
+}
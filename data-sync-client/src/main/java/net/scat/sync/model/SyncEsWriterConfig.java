@@ -7,7 +7,8 @@ import lombok.Setter;
 @Setter
 public class SyncEsWriterConfig extends SyncBaseConfig {
     /**
-     * es更新script，参数用%field_name%封装，无需对字符类型设置''
+     * es更新script，参数用%field_name%封装，无需对字符类型设置''；
+     * 加载时转换为params.field_name，值以脚本参数传递
      */
     private String updateScript;
 
@@ -49,4 +50,8 @@ public class SyncEsWriterConfig extends SyncBaseConfig {
      * 关联键在表中的字段名，用于删除操作获取关联值'
      */
     private String foreignKeyOriginName;
+    /**
+     * 从表局部更新后是否立即刷新索引，0 否，1 是
+     */
+    private Integer updateRefresh;
 }
@@ -0,0 +1,28 @@
+package net.scat.sync.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 维表查询配置，主查询结果中的每条数据按keyName的值查询维表，结果合并到数据中，查询结果会被缓存
+ */
+@Getter
+@Setter
+public class SyncLookupConfig {
+    /**
+     * 查询的库表，格式 db.table，该表的变更事件会使对应的缓存失效
+     */
+    private String table;
+    /**
+     * 查询参数对应的字段名，取自主查询结果，sql中参数用#{key_name}封装
+     */
+    private String keyName;
+    /**
+     * 参数在维表中对应的字段名，用于从变更事件中取值，使对应的缓存失效
+     */
+    private String keyColumn;
+    /**
+     * 查询sql，结果为单一数据
+     */
+    private String sql;
+}
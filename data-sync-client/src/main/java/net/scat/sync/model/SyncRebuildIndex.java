@@ -0,0 +1,29 @@
+package net.scat.sync.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 重建中的索引，各实例定时加载状态为双写中的记录，增量同时写入新索引
+ */
+@Getter
+@Setter
+public class SyncRebuildIndex {
+    private Long id;
+    /**
+     * 重建的索引别名，即写入配置的索引名
+     */
+    private String esAlias;
+    /**
+     * 重建中的新索引
+     */
+    private String targetIndex;
+    /**
+     * 导入新索引的全量初始化任务id
+     */
+    private Long taskId;
+    /**
+     * 状态，0 双写中，1 已切换别名，2 已取消
+     */
+    private Integer status;
+}
@@ -18,4 +18,25 @@ public class SyncSqlReaderConfig extends SyncBaseConfig {
      * 删除操作时，查询整条数据的sql，参数用#{field_name}封装
      */
     private String queryDeleteSql;
+    /**
+     * 主表新增、更新时，是否直接用变更后的数据生成文档，0 否，1 是
+     */
+    private Integer eventSourced;
+    /**
+     * 事件字段映射，格式 column[:es_field]，多个用","分割；为空时解析query_whole_sql，
+     * 设置后query_whole_sql只用于查询关联字段，可为空
+     */
+    private String eventFieldMapping;
+    /**
+     * 维表查询配置，json数组，格式见{@link SyncLookupConfig}，查询结果按维表变更事件失效
+     */
+    private String lookupConfig;
+    /**
+     * 批量查询整条数据sql，只能有一个参数，形如 where id in (#{id})，参数展开为多个key；为空时不批量读取
+     */
+    private String queryBatchSql;
+    /**
+     * 批量查询结果中对应key的字段，用于把查询结果拆分到各个事件
+     */
+    private String batchKeyName;
 }
@@ -0,0 +1,63 @@
+package net.scat.sync.consumer.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyncRowSchemaTest {
+
+    @Test
+    void distinctColumns() {
+        SyncRowSchema schema = new SyncRowSchema(new String[]{"id", "name"});
+        assertEquals(2, schema.size());
+        assertEquals(0, schema.indexOf("id"));
+        assertEquals(1, schema.indexOf("NAME"));
+        assertEquals(-1, schema.indexOf("age"));
+        assertEquals(1, schema.getLabelIndex(1));
+    }
+
+    @Test
+    void duplicateColumnsCollapsedToLast() {
+        SyncRowSchema schema = new SyncRowSchema(new String[]{"id", "name", "age", "name"});
+        assertEquals(3, schema.size());
+        assertEquals(1, schema.indexOf("name"));
+        assertEquals("name", schema.getColumn(1));
+        assertEquals(3, schema.getLabelIndex(1));
+        assertEquals(2, schema.getLabelIndex(2));
+    }
+
+    @Test
+    void caseVariantColumnsCollapsedToLast() {
+        SyncRowSchema schema = new SyncRowSchema(new String[]{"id", "Name", "NAME"});
+        assertEquals(2, schema.size());
+        assertEquals("NAME", schema.getColumn(1));
+        assertEquals(2, schema.getLabelIndex(1));
+        assertEquals(1, schema.indexOf("Name"));
+        assertEquals(1, schema.indexOf("name"));
+    }
+
+    @Test
+    void rowHasNoDuplicateEntries() {
+        SyncRowSchema schema = new SyncRowSchema(new String[]{"id", "name", "Name"});
+        Object[] values = new Object[schema.size()];
+        Object[] resultSet = {1L, "a", "b"};
+        for (int i = 0; i < values.length; i++) {
+            values[i] = resultSet[schema.getLabelIndex(i)];
+        }
+        SyncRow row = new SyncRow(schema, values);
+        row.put("extra", 2);
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("id", 1L);
+        expected.put("Name", "b");
+        expected.put("extra", 2);
+        assertEquals(3, row.size());
+        assertEquals(expected, new HashMap<>(row));
+        assertEquals(Arrays.asList("id", "Name", "extra"), Arrays.asList(row.keySet().toArray()));
+        assertEquals("b", row.get("NAME"));
+    }
+}
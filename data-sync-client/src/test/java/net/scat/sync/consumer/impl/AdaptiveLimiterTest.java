@@ -0,0 +1,113 @@
+package net.scat.sync.consumer.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveLimiterTest {
+
+    @Test
+    void additiveIncrease() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 1, 10, 2, 0.5);
+        limiter.onSample(System.nanoTime(), true);
+        assertEquals(5, limiter.getLimit());
+        // 并发不到上限一半时不增加
+        limiter.onSample(System.nanoTime(), false);
+        assertEquals(5, limiter.getLimit());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        limiter.onSample(System.nanoTime(), false);
+        assertEquals(7, limiter.getLimit());
+        limiter.onSample(System.nanoTime(), false);
+        assertEquals(7, limiter.getLimit());
+        assertTrue(limiter.tryAcquire());
+        limiter.onSample(System.nanoTime(), false);
+        assertEquals(9, limiter.getLimit());
+        assertTrue(limiter.tryAcquire());
+        limiter.onSample(System.nanoTime(), false);
+        assertEquals(10, limiter.getLimit());
+        // 不超过上限
+        limiter.onSample(System.nanoTime(), false);
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void singleDecreasePerRound() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 10, 1, 0.5);
+        long firstRound = System.nanoTime();
+        limiter.onSample(firstRound, true);
+        limiter.onSample(firstRound, true);
+        assertEquals(5, limiter.getLimit());
+        assertEquals(1, limiter.getDecreases());
+        // 下降之后发出的请求再过载时继续下降，不低于下限
+        limiter.onSample(System.nanoTime(), true);
+        assertEquals(2, limiter.getLimit());
+        limiter.onSample(System.nanoTime(), true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(3, limiter.getDecreases());
+    }
+
+    @Test
+    void acquireBlocksUntilRelease() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 1, 1, 1, 0.5);
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.tryAcquire());
+        Waiter waiter = new Waiter(limiter);
+        waiter.awaitBlocked();
+        assertFalse(waiter.acquired.isDone());
+        assertEquals(1, limiter.getThrottled());
+
+        limiter.release();
+        assertTrue(waiter.acquired.get(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    void acquireWakesOnIncrease() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 1, 2, 1, 0.5);
+        limiter.onSample(System.nanoTime(), true);
+        assertEquals(1, limiter.getLimit());
+        assertTrue(limiter.acquire());
+        Waiter waiter = new Waiter(limiter);
+        waiter.awaitBlocked();
+
+        limiter.onSample(System.nanoTime(), false);
+        assertTrue(waiter.acquired.get(5, TimeUnit.SECONDS));
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    void interruptedAcquireReturnsFalse() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 1, 1, 1, 0.5);
+        assertTrue(limiter.acquire());
+        Waiter waiter = new Waiter(limiter);
+        waiter.awaitBlocked();
+
+        waiter.thread.interrupt();
+        assertFalse(waiter.acquired.get(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    private static class Waiter {
+        private final CompletableFuture<Boolean> acquired = new CompletableFuture<>();
+        private final Thread thread;
+
+        private Waiter(AdaptiveLimiter limiter) {
+            thread = new Thread(() -> acquired.complete(limiter.acquire()));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void awaitBlocked() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (thread.getState() != Thread.State.WAITING) {
+                assertTrue(System.currentTimeMillis() < deadline, "acquire is not blocked");
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package net.scat.sync.consumer.impl;
+
+import net.scat.sync.enums.DataChangeEventType;
+import net.scat.sync.model.DataChangeEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqlProjectionTest {
+
+    @Test
+    void parseMapping() {
+        SqlProjection projection = SqlProjection.parseMapping("id, title:name,,status:");
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("id", "id");
+        expected.put("title", "name");
+        expected.put("status", "status");
+        assertEquals(expected, projection.getColumnToField());
+        assertFalse(projection.isAllColumns());
+        assertNull(projection.getKeyColumn());
+    }
+
+    @Test
+    void analyzeSimpleSelect() {
+        SqlProjection projection = SqlProjection.analyze("select t.id, t.title as name from `article` t where t.id = '#{id}'", "article");
+        assertNotNull(projection);
+        assertEquals(Arrays.asList("id", "title"), new ArrayList<>(projection.getColumnToField().keySet()));
+        assertEquals("name", projection.getColumnToField().get("title"));
+        assertEquals("id", projection.getKeyColumn());
+        projection = SqlProjection.analyze("select * from article where id = #{id}", "article");
+        assertNotNull(projection);
+        assertTrue(projection.isAllColumns());
+    }
+
+    @Test
+    void analyzeUnsupportedSelect() {
+        assertNull(SqlProjection.analyze("select a.id, c.name from article a join category c on a.category_id = c.id where a.id = #{id}", "article"));
+        assertNull(SqlProjection.analyze("select id, upper(title) as title from article where id = #{id}", "article"));
+        assertNull(SqlProjection.analyze("select id from article where id = #{id} and status = 1", "article"));
+        assertNull(SqlProjection.analyze("select id from article where code = #{id}", "article"));
+        assertNull(SqlProjection.analyze("select id from other where id = #{id}", "article"));
+    }
+
+    @Test
+    void projectChanges() {
+        SqlProjection projection = SqlProjection.parseMapping("id,title:name,status");
+        DataChangeEvent event = update(row("id", 1, "title", "a", "status", 1), row("id", 1, "title", "b", "status", 1));
+        assertEquals(Collections.singletonMap("name", "b"), projection.projectChanges(event, false, Collections.emptyList()));
+    }
+
+    @Test
+    void primaryKeyChangeNeedsWholeUpdate() {
+        SqlProjection projection = SqlProjection.parseMapping("id,title");
+        DataChangeEvent event = update(row("id", 1, "title", "a"), row("id", 2, "title", "a"));
+        assertNull(projection.projectChanges(event, true, Collections.emptyList()));
+    }
+
+    @Test
+    void missingBeforeFieldNeedsWholeUpdate() {
+        SqlProjection projection = SqlProjection.parseMapping("id,title");
+        DataChangeEvent event = update(row("id", 1), row("id", 1, "title", "b"));
+        assertNull(projection.projectChanges(event, true, Collections.emptyList()));
+    }
+
+    @Test
+    void unmappedColumnChange() {
+        SqlProjection projection = SqlProjection.parseMapping("id,title");
+        DataChangeEvent event = update(row("id", 1, "title", "a", "remark", "x"), row("id", 1, "title", "a", "remark", "y"));
+        assertNull(projection.projectChanges(event, false, Collections.emptyList()));
+        assertEquals(Collections.emptyMap(), projection.projectChanges(event, true, Collections.emptyList()));
+    }
+
+    @Test
+    void joinColumnChangeNeedsWholeUpdate() {
+        SqlProjection projection = SqlProjection.parseMapping("id,category_id,title");
+        DataChangeEvent event = update(row("id", 1, "category_id", 10, "title", "a"), row("id", 1, "category_id", 11, "title", "a"));
+        assertNull(projection.projectChanges(event, false, Collections.singletonList("CATEGORY_ID")));
+        assertEquals(Collections.singletonMap("category_id", 11),
+                projection.projectChanges(event, false, Collections.emptyList()));
+    }
+
+    static DataChangeEvent update(DataChangeEvent.Entity before, DataChangeEvent.Entity after) {
+        DataChangeEvent.MetaData metaData = new DataChangeEvent.MetaData();
+        metaData.setTable("article");
+        metaData.setPrimaryKeyName("id");
+        DataChangeEvent event = new DataChangeEvent();
+        event.setMetaData(metaData);
+        event.setEventType(DataChangeEventType.UPDATE);
+        event.setBefore(before);
+        event.setAfter(after);
+        return event;
+    }
+
+    static DataChangeEvent.Entity row(Object... columnValues) {
+        DataChangeEvent.Entity entity = new DataChangeEvent.Entity();
+        for (int i = 0; i < columnValues.length; i += 2) {
+            String name = (String) columnValues[i];
+            entity.getFields().put(name, new DataChangeEvent.FieldData().setName(name).setValue(columnValues[i + 1]));
+        }
+        return entity;
+    }
+}
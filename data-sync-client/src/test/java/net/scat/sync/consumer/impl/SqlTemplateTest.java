@@ -0,0 +1,71 @@
+package net.scat.sync.consumer.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqlTemplateTest {
+
+    @Test
+    void bareParameter() {
+        SqlTemplate template = SqlTemplate.parse("select * from t where id = #{id} and type=#{type}");
+        assertEquals("select * from t where id = ? and type=?", template.getSql());
+        assertEquals(Arrays.asList("id", "type"), template.getParamNames());
+    }
+
+    @Test
+    void singleQuotedParameter() {
+        SqlTemplate template = SqlTemplate.parse("select * from t where name = '#{name}' and code like '%#{code}%'");
+        assertEquals("select * from t where name = ? and code like concat('%', ?, '%')", template.getSql());
+        assertEquals(Arrays.asList("name", "code"), template.getParamNames());
+    }
+
+    @Test
+    void doubleQuotedParameter() {
+        SqlTemplate template = SqlTemplate.parse("select * from t where name = \"#{name}\" and code like \"it's #{code}\"");
+        assertEquals("select * from t where name = ? and code like concat(\"it's \", ?)", template.getSql());
+        assertEquals(Arrays.asList("name", "code"), template.getParamNames());
+    }
+
+    @Test
+    void literalsWithoutParameterKeptAsIs() {
+        SqlTemplate template = SqlTemplate.parse("select 'a''#', \"b\\\"#\", `c` from t where id = #{id}");
+        assertEquals("select 'a''#', \"b\\\"#\", `c` from t where id = ?", template.getSql());
+        assertEquals(Collections.singletonList("id"), template.getParamNames());
+    }
+
+    @Test
+    void inListParameters() {
+        SqlTemplate template = SqlTemplate.parse("select * from t where id in (#{id})");
+        assertEquals("select * from t where id in (?,?,?)", template.expand(3).getSql());
+        template = SqlTemplate.parse("select * from t where id in (#{a}, #{b})");
+        assertEquals("select * from t where id in (?, ?)", template.getSql());
+    }
+
+    @Test
+    void parameterAsIdentifierRejected() {
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from `t_#{suffix}` where id = #{id}"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from t_#{suffix} where id = #{id}"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from #{table} where id = #{id}"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select t.#{column} from t where id = #{id}"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from t where id = #{id} order by #{column}"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from a join #{table} b on a.id = b.id"));
+    }
+
+    @Test
+    void parameterInLimitRejected() {
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from t where id = #{id} limit #{size}"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from t where id = #{id} LIMIT 10, #{size}"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from t where id = #{id} limit 10 offset #{from}"));
+    }
+
+    @Test
+    void unclosedQuoteRejected() {
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from t where name = 'abc"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from t where name = \"abc"));
+        assertThrows(IllegalArgumentException.class, () -> SqlTemplate.parse("select * from `t where id = 1"));
+    }
+}
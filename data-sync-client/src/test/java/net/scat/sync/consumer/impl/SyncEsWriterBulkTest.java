@@ -0,0 +1,207 @@
+package net.scat.sync.consumer.impl;
+
+import net.scat.sync.client.config.SyncClientProperties;
+import net.scat.sync.model.SyncDeadLetter;
+import net.scat.sync.model.SyncEsWriterConfig;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyncEsWriterBulkTest {
+    private static final String INDEX = "test_index";
+    private final SyncClientProperties properties = new SyncClientProperties();
+    private final SyncEsWriterConfig config = new SyncEsWriterConfig();
+    /**
+     * 文档id -> 依次各次发送的结果，OK为成功，取完后均成功
+     */
+    private final Map<String, Deque<RestStatus>> outcomes = new ConcurrentHashMap<>();
+    /**
+     * 文档id -> 发送次数
+     */
+    private final Map<String, AtomicInteger> sent = new ConcurrentHashMap<>();
+    /**
+     * 之后多少次批量请求整体失败
+     */
+    private final AtomicInteger requestFailures = new AtomicInteger();
+    private final List<SyncDeadLetter> deadLetters = new CopyOnWriteArrayList<>();
+    private volatile boolean deadLetterFails;
+    private final ExecutorService ioThread = Executors.newSingleThreadExecutor();
+    private SyncEsWriter writer;
+
+    @BeforeEach
+    void setUp() {
+        SyncClientProperties.Writer writerProperties = properties.getWriter();
+        writerProperties.setBulkFlushIntervalMillis(10);
+        writerProperties.setBulkBackoffMillis(1);
+        writerProperties.setBulkRetryTimes(2);
+        writerProperties.setHashCacheSize(1000);
+        config.setId(1);
+        config.setEsIndex(INDEX);
+        config.setEsType("_doc");
+        config.setEsIdName("id");
+        config.setIsMainTable(1);
+        writer = new TestWriter();
+        writer.init();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        writer.close();
+        ioThread.shutdownNow();
+    }
+
+    @Test
+    void mixedItemFailures() throws Exception {
+        outcome("1", RestStatus.OK);
+        outcome("2", RestStatus.TOO_MANY_REQUESTS);
+        outcome("3", RestStatus.SERVICE_UNAVAILABLE);
+        outcome("4", RestStatus.CONFLICT);
+        outcome("5", RestStatus.BAD_REQUEST);
+
+        writer.upsertAsync(config, docs("1", "2", "3", "4", "5")).get(5, TimeUnit.SECONDS);
+
+        // 429、503、409重试一次后成功，其他失败不重试
+        assertEquals(1, sent.get("1").get());
+        assertEquals(2, sent.get("2").get());
+        assertEquals(2, sent.get("3").get());
+        assertEquals(2, sent.get("4").get());
+        assertEquals(1, sent.get("5").get());
+        assertEquals(1, deadLetters.size());
+        SyncDeadLetter deadLetter = deadLetters.get(0);
+        assertEquals("5", deadLetter.getDocId());
+        assertEquals(INDEX, deadLetter.getEsIndex());
+        assertEquals(400, deadLetter.getStatus());
+        assertEquals(0, deadLetter.getAttempts());
+        assertTrue(deadLetter.getSource().contains("\"id\":\"5\""));
+        SyncEsWriter.BulkStats stats = writer.getBulkStats().get(INDEX);
+        assertEquals(4, stats.getSucceeded().sum());
+        assertEquals(3, stats.getRetried().sum());
+        assertEquals(1, stats.getDeadLettered().sum());
+    }
+
+    @Test
+    void wholeRequestFailureRetried() throws Exception {
+        requestFailures.set(1);
+
+        writer.upsertAsync(config, docs("1")).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, sent.get("1").get());
+        assertTrue(deadLetters.isEmpty());
+        assertEquals(1, writer.getBulkStats().get(INDEX).getRetried().sum());
+        assertEquals(1, writer.getBulkStats().get(INDEX).getSucceeded().sum());
+    }
+
+    @Test
+    void retriesExhaustedDeadLettered() throws Exception {
+        outcome("1", RestStatus.TOO_MANY_REQUESTS, RestStatus.TOO_MANY_REQUESTS, RestStatus.TOO_MANY_REQUESTS);
+
+        writer.upsertAsync(config, docs("1", "2")).get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, sent.get("1").get());
+        assertEquals(1, sent.get("2").get());
+        assertEquals(1, deadLetters.size());
+        assertEquals(429, deadLetters.get(0).getStatus());
+        assertEquals(2, deadLetters.get(0).getAttempts());
+    }
+
+    @Test
+    void deadLetterFailureFailsFuture() throws Exception {
+        deadLetterFails = true;
+        outcome("1", RestStatus.BAD_REQUEST);
+
+        CompletableFuture<Void> future = writer.upsertAsync(config, docs("1", "2"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals(1, writer.getBulkStats().get(INDEX).getFailed().sum());
+    }
+
+    @Test
+    void identicalUpsertNotSkippedWhileWriteUnfinished() throws Exception {
+        outcome("1", RestStatus.TOO_MANY_REQUESTS, RestStatus.BAD_REQUEST);
+
+        CompletableFuture<Void> first = writer.upsertAsync(config, docs("1"));
+        // 上一次写入未结束，内容相同也不跳过，上一次写入最终记录到失败表时不会丢失
+        CompletableFuture<Void> second = writer.upsertAsync(config, docs("1"));
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+        assertEquals(3, sent.get("1").get());
+        assertEquals(1, deadLetters.size());
+
+        // 写入成功后记录hash，之后相同内容跳过
+        writer.upsertAsync(config, docs("1")).get(5, TimeUnit.SECONDS);
+        assertEquals(3, sent.get("1").get());
+        assertEquals(1, writer.getBulkStats().get(INDEX).getSkipped().sum());
+    }
+
+    private void outcome(String id, RestStatus... statuses) {
+        outcomes.put(id, new ConcurrentLinkedDeque<>(Arrays.asList(statuses)));
+    }
+
+    private List<Map<String, Object>> docs(String... ids) {
+        List<Map<String, Object>> data = new ArrayList<>();
+        for (String id : ids) {
+            Map<String, Object> doc = new LinkedHashMap<>();
+            doc.put("id", id);
+            doc.put("name", "name" + id);
+            data.add(doc);
+        }
+        return data;
+    }
+
+    private BulkResponse respond(BulkRequest request) {
+        List<DocWriteRequest<?>> requests = request.requests();
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            DocWriteRequest<?> docRequest = requests.get(i);
+            Deque<RestStatus> statuses = outcomes.get(docRequest.id());
+            RestStatus status = statuses == null || statuses.isEmpty() ? RestStatus.OK : statuses.poll();
+            if (status == RestStatus.OK) {
+                items[i] = new BulkItemResponse(i, docRequest.opType(), new UpdateResponse(new ShardId(INDEX, "uuid", 0),
+                        docRequest.type(), docRequest.id(), 1, DocWriteResponse.Result.UPDATED));
+            } else {
+                items[i] = new BulkItemResponse(i, docRequest.opType(), new BulkItemResponse.Failure(INDEX, docRequest.type(),
+                        docRequest.id(), new IOException("status " + status.getStatus()), status));
+            }
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private class TestWriter extends SyncEsWriter {
+        private TestWriter() {
+            super(null, properties, deadLetter -> {
+                if (deadLetterFails) {
+                    throw new IllegalStateException("dead letter table unavailable");
+                }
+                deadLetters.add(deadLetter);
+                return 1;
+            });
+        }
+
+        @Override
+        void bulkAsync(BulkRequest request, ActionListener<BulkResponse> listener) {
+            request.requests().forEach(docRequest -> sent.computeIfAbsent(docRequest.id(), k -> new AtomicInteger()).incrementAndGet());
+            if (requestFailures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                ioThread.execute(() -> listener.onFailure(new IOException("connection reset")));
+                return;
+            }
+            BulkResponse response = respond(request);
+            ioThread.execute(() -> listener.onResponse(response));
+        }
+    }
+}
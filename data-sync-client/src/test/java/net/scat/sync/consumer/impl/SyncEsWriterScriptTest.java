@@ -0,0 +1,35 @@
+package net.scat.sync.consumer.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SyncEsWriterScriptTest {
+
+    @Test
+    void bareAndQuotedParameters() {
+        assertEquals("ctx._source.name = params.name; ctx._source.age = params.age",
+                SyncEsWriter.toParamScript("ctx._source.name = '%name%'; ctx._source.age = %age%"));
+        assertEquals("ctx._source.name = params.name", SyncEsWriter.toParamScript("ctx._source.name = \"%name%\""));
+    }
+
+    @Test
+    void parameterInsideStringConcatenated() {
+        assertEquals("ctx._source.code = ('prefix_' + params.name)",
+                SyncEsWriter.toParamScript("ctx._source.code = 'prefix_%name%'"));
+        assertEquals("ctx._source.code = ('' + params.a + '-' + params.b + params.c + '_end')",
+                SyncEsWriter.toParamScript("ctx._source.code = '%a%-%b%%c%_end'"));
+    }
+
+    @Test
+    void literalsWithoutParameterKeptAsIs() {
+        assertEquals("ctx._source.tag = 'it\\'s 100%'; ctx._source.id = params.id",
+                SyncEsWriter.toParamScript("ctx._source.tag = 'it\\'s 100%'; ctx._source.id = %id%"));
+    }
+
+    @Test
+    void unclosedStringRejected() {
+        assertThrows(IllegalArgumentException.class, () -> SyncEsWriter.toParamScript("ctx._source.name = '%name%"));
+    }
+}
@@ -0,0 +1,37 @@
+package net.scat.sync.consumer.impl;
+
+import net.scat.sync.model.SyncEsWriterConfig;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SyncJsonSerializerTest {
+
+    @Test
+    void duplicateLabelsWrittenOnce() throws Exception {
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(metaData.getColumnCount()).thenReturn(4);
+        when(metaData.getColumnLabel(1)).thenReturn("id");
+        when(metaData.getColumnLabel(2)).thenReturn("name");
+        when(metaData.getColumnLabel(3)).thenReturn("NAME");
+        when(metaData.getColumnLabel(4)).thenReturn("id");
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getMetaData()).thenReturn(metaData);
+        when(rs.getObject(1)).thenReturn(1L);
+        when(rs.getObject(2)).thenReturn("a");
+        when(rs.getObject(3)).thenReturn("b");
+        when(rs.getObject(4)).thenReturn(2L);
+
+        Map<String, Object> row = new SyncRowMapper().mapRow(rs, 0);
+        byte[] source = new SyncJsonSerializer().serialize(new SyncEsWriterConfig(), Collections.singletonList(row)).get(0);
+        assertEquals("{\"id\":2,\"NAME\":\"b\"}", new String(source, StandardCharsets.UTF_8));
+    }
+}
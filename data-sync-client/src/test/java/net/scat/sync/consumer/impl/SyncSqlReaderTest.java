@@ -0,0 +1,33 @@
+package net.scat.sync.consumer.impl;
+
+import net.scat.sync.client.config.SyncClientProperties;
+import net.scat.sync.model.DataChangeEvent;
+import net.scat.sync.model.SyncSqlReaderConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static net.scat.sync.consumer.impl.SqlProjectionTest.row;
+import static net.scat.sync.consumer.impl.SqlProjectionTest.update;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyncSqlReaderTest {
+
+    @Test
+    void wholeSqlParameterChangeNeedsWholeUpdate() {
+        SyncSqlReader reader = new SyncSqlReader(new SyncClientProperties(), null);
+        reader.init();
+        SyncSqlReaderConfig config = new SyncSqlReaderConfig();
+        config.setId(1);
+        config.setTable("article");
+        config.setIsMainTable(1);
+        config.setEventFieldMapping("id,category_id,title");
+        config.setQueryWholeSql("select a.id, c.name as category_name from article a join category c on c.id = #{category_id} where a.id = #{id}");
+        reader.prepare(config);
+
+        DataChangeEvent categoryChanged = update(row("id", 1, "category_id", 10, "title", "a"), row("id", 1, "category_id", 11, "title", "a"));
+        assertNull(reader.getChangedData(config, categoryChanged));
+        DataChangeEvent titleChanged = update(row("id", 1, "category_id", 10, "title", "a"), row("id", 1, "category_id", 10, "title", "b"));
+        assertEquals(Collections.singletonMap("title", "b"), reader.getChangedData(config, titleChanged));
+    }
+}
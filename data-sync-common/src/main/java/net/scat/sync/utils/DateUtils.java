@@ -1,13 +1,24 @@
 package net.scat.sync.utils;
 
-import org.apache.commons.lang3.time.DateFormatUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
 
 import java.util.Date;
 
 public class DateUtils {
     private final static String default_pattern = "yyyy-MM-dd HH:mm:ss";
+    /**
+     * 线程安全，直接复用，避免每次按格式查找缓存
+     */
+    private final static FastDateFormat default_format = FastDateFormat.getInstance(default_pattern);
+
     public static String format(Date date) {
-        return DateFormatUtils.format(date, default_pattern);
+        return default_format.format(date);
     }
 
+    /**
+     * 格式化后追加到buffer，不创建中间字符串
+     */
+    public static <B extends Appendable> B format(Date date, B buffer) {
+        return default_format.format(date, buffer);
+    }
 }
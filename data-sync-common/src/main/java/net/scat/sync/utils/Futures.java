@@ -0,0 +1,24 @@
+package net.scat.sync.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class Futures {
+    /**
+     * 等待完成，失败时抛出原始异常
+     */
+    public static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public static CompletableFuture<Void> done() {
+        return CompletableFuture.completedFuture(null);
+    }
+}
@@ -0,0 +1,98 @@
+package net.scat.sync.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 合并相同key的并发调用：没有执行中的调用时直接执行；
+ * 有执行中的调用时，后到的调用合并为一次，等执行中的调用结束后再执行并共享结果，
+ * 保证每个调用拿到的结果都是在其发起之后才开始执行得到的
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, State<V>> states = new ConcurrentHashMap<>();
+
+    public V execute(K key, Callable<V> callable) throws Exception {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<V>> running = new AtomicReference<>();
+        AtomicReference<CompletableFuture<V>> pending = new AtomicReference<>();
+        states.compute(key, (k, state) -> {
+            if (state == null) {
+                return new State<>(flight);
+            }
+            if (state.pending == null) {
+                state.pending = flight;
+                running.set(state.running);
+            } else {
+                pending.set(state.pending);
+            }
+            return state;
+        });
+        if (pending.get() != null) {
+            return await(pending.get());
+        }
+        if (running.get() != null) {
+            try {
+                // 不响应中断，否则等待中的调用永远不会执行，合并到它上面的调用会一直阻塞
+                running.get().join();
+            } catch (CompletionException ignored) {
+                // 上一次调用失败不影响本次执行
+            }
+        }
+        return run(key, flight, callable);
+    }
+
+    private V run(K key, CompletableFuture<V> flight, Callable<V> callable) throws Exception {
+        V value;
+        try {
+            value = callable.call();
+        } catch (Throwable e) {
+            promote(key);
+            flight.completeExceptionally(e);
+            if (e instanceof Exception) {
+                throw (Exception) e;
+            }
+            throw (Error) e;
+        }
+        promote(key);
+        flight.complete(value);
+        return value;
+    }
+
+    /**
+     * 先把等待中的调用置为执行中，再通知结果，避免之后到达的调用合并到已开始执行的调用上
+     */
+    private void promote(K key) {
+        states.compute(key, (k, state) -> {
+            if (state == null || state.pending == null) {
+                return null;
+            }
+            state.running = state.pending;
+            state.pending = null;
+            return state;
+        });
+    }
+
+    private V await(CompletableFuture<V> flight) throws Exception {
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class State<V> {
+        private CompletableFuture<V> running;
+        private CompletableFuture<V> pending;
+
+        private State(CompletableFuture<V> running) {
+            this.running = running;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.scat.sync.utils;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import net.scat.sync.model.DataChangeEvent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 同步各环节的指标，名称以data.sync.开头，注册到Micrometer的全局注册表；
+ * Spring Boot应用默认把自身的注册表加入全局注册表，引入micrometer-registry-prometheus即可由actuator导出。
+ * 耗时按固定的SLO桶发布直方图，每个耗时只有十几个桶，可跨实例聚合；tags为成对的名称、值
+ */
+public class SyncMetrics {
+    private static final String PREFIX = "data.sync.";
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+    /**
+     * 耗时直方图的桶，覆盖单次请求的毫秒级耗时到复制延迟的分钟级
+     */
+    private static final Duration[] SLO_BUCKETS = {
+            Duration.ofMillis(5), Duration.ofMillis(10), Duration.ofMillis(25), Duration.ofMillis(50),
+            Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500), Duration.ofSeconds(1),
+            Duration.ofMillis(2500), Duration.ofSeconds(5), Duration.ofSeconds(10), Duration.ofSeconds(30),
+            Duration.ofMinutes(1), Duration.ofMinutes(5), Duration.ofMinutes(10)};
+    /**
+     * 名称及tags -> 已注册的耗时，避免每次记录都构建并查找注册表
+     */
+    private static final ConcurrentHashMap<List<String>, Timer> timers = new ConcurrentHashMap<>();
+
+    public static Timer timer(String name, String... tags) {
+        List<String> key = new ArrayList<>(tags.length + 1);
+        key.add(name);
+        Collections.addAll(key, tags);
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(key, k -> Timer.builder(PREFIX + name)
+                    .tags(tags)
+                    .serviceLevelObjectives(SLO_BUCKETS)
+                    .register(registry));
+        }
+        return timer;
+    }
+
+    /**
+     * 记录从startNanos（System.nanoTime）到现在的耗时
+     */
+    public static void recordSince(long startNanos, String name, String... tags) {
+        timer(name, tags).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 当前值由函数读取，只持有obj的弱引用
+     */
+    public static <T> void gauge(String name, T obj, ToDoubleFunction<T> function, String... tags) {
+        Gauge.builder(PREFIX + name, obj, function).tags(tags).register(registry);
+    }
+
+    /**
+     * 单调递增的计数，由函数读取已有的计数器
+     */
+    public static <T> void counter(String name, T obj, ToDoubleFunction<T> function, String... tags) {
+        FunctionCounter.builder(PREFIX + name, obj, function).tags(tags).register(registry);
+    }
+
+    /**
+     * 记录事件到达某一环节时相对源库提交时间（事件timestamp，秒级精度）的延迟
+     */
+    public static void recordLag(String stage, DataChangeEvent event) {
+        if (event.getTimestamp() == null) {
+            return;
+        }
+        long lagMillis = Math.max(0, System.currentTimeMillis() - event.getTimestamp().getTime());
+        timer("lag", "stage", stage, "table", table(event)).record(lagMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 事件的库名.表名，作为table标签
+     */
+    public static String table(DataChangeEvent event) {
+        DataChangeEvent.MetaData metaData = event.getMetaData();
+        return metaData == null ? "" : metaData.getDb() + "." + metaData.getTable();
+    }
+}
@@ -0,0 +1,108 @@
+package net.scat.sync.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+    private final SingleFlight<String, Integer> flight = new SingleFlight<>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch firstStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseFirst = new CountDownLatch(1);
+
+    @Test
+    void callerDuringRunningCallWaitsAndRunsAgain() throws Exception {
+        Caller first = start(this::blockingCall);
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+        Caller second = start(calls::incrementAndGet);
+        awaitWaiting(second);
+        assertFalse(second.result.isDone());
+        assertEquals(1, calls.get());
+
+        releaseFirst.countDown();
+        assertEquals(1, first.result.get(5, TimeUnit.SECONDS));
+        // 没有合并到执行中的调用上，而是在其结束后重新执行
+        assertEquals(2, second.result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void waitingCallersShareOneFreshCall() throws Exception {
+        Caller first = start(this::blockingCall);
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+        Caller second = start(calls::incrementAndGet);
+        awaitWaiting(second);
+        Caller third = start(calls::incrementAndGet);
+        awaitWaiting(third);
+
+        releaseFirst.countDown();
+        assertEquals(1, first.result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, second.result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, third.result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void failedRunningCallDoesNotFailWaitingCaller() throws Exception {
+        Caller first = start(() -> {
+            blockingCall();
+            throw new IllegalStateException("first failed");
+        });
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+        Caller second = start(calls::incrementAndGet);
+        awaitWaiting(second);
+
+        releaseFirst.countDown();
+        assertThrows(Exception.class, () -> first.result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, second.result.get(5, TimeUnit.SECONDS));
+    }
+
+    private Integer blockingCall() throws InterruptedException {
+        int call = calls.incrementAndGet();
+        firstStarted.countDown();
+        releaseFirst.await();
+        return call;
+    }
+
+    private Caller start(Callable<Integer> callable) {
+        Caller caller = new Caller(callable);
+        caller.thread.start();
+        return caller;
+    }
+
+    /**
+     * 等待调用线程阻塞在执行中的调用或合并的调用上
+     */
+    private void awaitWaiting(Caller caller) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (caller.thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline, "caller is not waiting");
+            Thread.sleep(1);
+        }
+    }
+
+    private class Caller {
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+        private final Thread thread;
+
+        private Caller(Callable<Integer> callable) {
+            thread = new Thread(() -> {
+                try {
+                    result.complete(flight.execute("key", callable));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            thread.setDaemon(true);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package net.scat.sync.server;
 import lombok.extern.slf4j.Slf4j;
 import net.scat.sync.model.DataChangeEvent;
 import net.scat.sync.server.constant.RocketMqConstant;
+import net.scat.sync.utils.SyncMetrics;
 import org.apache.rocketmq.client.producer.SendCallback;
 import org.apache.rocketmq.client.producer.SendResult;
 import org.apache.rocketmq.client.producer.SendStatus;
@@ -14,6 +15,7 @@ import org.springframework.util.Assert;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 @Slf4j
@@ -21,11 +23,15 @@ public class RocketMqSyncServer implements SyncServer {
     @Autowired
     private RocketMQTemplate rocketMQTemplate;
     private final LinkedBlockingQueue<DataChangeEvent> failedQueue = new LinkedBlockingQueue<>(10000);
+    // 已异步发送、未收到结果的消息数
+    private final AtomicInteger inFlightSends = new AtomicInteger();
     private volatile boolean closed = false;
 
     // 重试异常消息发送
     @PostConstruct
     public void initFailCheck() {
+        SyncMetrics.gauge("mq.failed.queue.size", failedQueue, LinkedBlockingQueue::size);
+        SyncMetrics.gauge("mq.inflight.sends", inFlightSends, AtomicInteger::get);
         new Thread(() -> {
             while (!closed) {
                 try {
@@ -75,15 +81,22 @@ public class RocketMqSyncServer implements SyncServer {
     @Override
     public void send(DataChangeEvent event) {
         Assert.isTrue(!closed, "RocketMqSyncServer has been closed, can not send current event=" + event.getSimpleInfo());
+        String table = SyncMetrics.table(event);
+        long startNanos = System.nanoTime();
+        inFlightSends.incrementAndGet();
         try {
             rocketMQTemplate.asyncSendOrderly(RocketMqConstant.TOPIC_SYNC, event, getHashKey(event), new SendCallback() {
                 @Override
                 public void onSuccess(SendResult sendResult) {
-                    // do noting
+                    inFlightSends.decrementAndGet();
+                    SyncMetrics.recordSince(startNanos, "mq.send", "table", table, "result", "success");
+                    SyncMetrics.recordLag("sent", event);
                 }
                 // 发送异常，存入本地队列，后续重试发送
                 @Override
                 public void onException(Throwable throwable) {
+                    inFlightSends.decrementAndGet();
+                    SyncMetrics.recordSince(startNanos, "mq.send", "table", table, "result", "failure");
                     log.error("Async send dataChangeEvent error by rocketMq, event=" + event.getSimpleInfo(), throwable);
                     if (!failedQueue.offer(event)) {
                         log.error("Add failed dataChangeEvent to local queue failed, event=" + event.getSimpleInfo());
@@ -91,6 +104,7 @@ public class RocketMqSyncServer implements SyncServer {
                 }
             });
         } catch (Exception e) {
+            inFlightSends.decrementAndGet();
             log.error("Async send dataChangeEvent error by rocketMq, event=" + event.getSimpleInfo(), e);
             throw new RuntimeException("Async send dataChangeEvent error by rocketMq, event=" + event.getSimpleInfo());
         }
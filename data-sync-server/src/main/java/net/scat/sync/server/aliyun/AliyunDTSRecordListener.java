@@ -14,6 +14,7 @@ import net.scat.sync.enums.DataFieldType;
 import net.scat.sync.model.DataChangeEvent;
 import net.scat.sync.server.SyncServer;
 import net.scat.sync.server.config.AliyunDTSProperties;
+import net.scat.sync.utils.SyncMetrics;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -148,6 +149,7 @@ public class AliyunDTSRecordListener implements RecordListener {
             record.commit("");
             return;
         }
+        long startNanos = System.nanoTime();
         try {
             DataChangeEvent event = new DataChangeEvent();
 
@@ -185,6 +187,8 @@ public class AliyunDTSRecordListener implements RecordListener {
                 event.setPrimaryKeyType(primaryKeyData.getType());
             }
             event.setPrimaryKeyData(primaryKeyData);
+            SyncMetrics.recordSince(startNanos, "dts.decode", "table", SyncMetrics.table(event));
+            SyncMetrics.recordLag("decoded", event);
             log.info("consume event,{}",event.getSimpleInfo());
             server.send(event);
             record.commit("");